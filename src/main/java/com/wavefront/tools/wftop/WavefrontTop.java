@@ -7,6 +7,7 @@ import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
+import com.google.common.primitives.Ints;
 import com.googlecode.lanterna.TextColor;
 import com.googlecode.lanterna.gui2.*;
 import com.googlecode.lanterna.screen.Screen;
@@ -15,6 +16,7 @@ import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
 import com.googlecode.lanterna.terminal.Terminal;
 import com.wavefront.tools.wftop.components.*;
 import com.wavefront.tools.wftop.panels.*;
+import net.agkn.hll.HLL;
 
 import javax.annotation.Nullable;
 import java.io.File;
@@ -32,7 +34,8 @@ import java.util.logging.Logger;
 public class WavefrontTop {
   private static final Logger log = Logger.getLogger("wftop");
 
-  private final Timer timer = new Timer(true);
+  @Nullable
+  private RefreshScheduler refreshScheduler = null;
   private final Stopwatch stopwatch = Stopwatch.createUnstarted();
   private final ClusterConfigurationPanel clusterConfigurationPanel = new ClusterConfigurationPanel();
   private final PointsSpy pointsSpy = new PointsSpy();
@@ -106,6 +109,53 @@ public class WavefrontTop {
   @Parameter(names = {"-c", "-children"}, description = "Maximum child per node")
   private int maxChildrenArg = 1000;
 
+  @Parameter(names = "-ingest-buffer", description = "Lines buffered between the connection and " +
+      "ingest threads before dropping")
+  private int ingestBufferArg = 16384;
+
+  @Parameter(names = "-ingest-threads", description = "Threads decoding spied lines")
+  private int ingestThreadsArg = 1;
+
+  @Parameter(names = "-shards", description = "Partition namespace trees across this many " +
+      "single-writer worker threads (1 disables sharding)")
+  private int shardsArg = 1;
+
+  @Parameter(names = "-rollup", description = "Only update the deepest namespace of each point, " +
+      "parents are rolled up when displayed")
+  private boolean rollUpArg = false;
+
+  @Parameter(names = "-offheap", description = "Keep counters and cardinality sketches of " +
+      "namespaces off-heap, for large trees")
+  private boolean offHeapArg = false;
+
+  @Parameter(names = "-hll-log2m", description = "Log2 of the number of registers of the " +
+      "cardinality sketches of top-level namespaces, deeper ones use fewer (down to 10)")
+  private int hllLog2mArg = 13;
+
+  @Parameter(names = "-hll-regwidth", description = "Bits per register of the cardinality sketches")
+  private int hllRegwidthArg = 5;
+
+  @Parameter(names = "-window", description = "Minutes of traffic the accessed and range columns " +
+      "cover (1, 5 or 15)")
+  private int statsWindowArg = 1;
+
+  @Parameter(names = "-idle-ttl", description = "Evict namespaces that have not seen points for " +
+      "this many minutes (0 keeps them for the whole session)")
+  private long idleTtlArg = 0;
+
+  @Parameter(names = "-memory-budget", description = "Percentage of the max heap namespaces may " +
+      "retain, beyond which new namespaces are not created and the least busy subtrees are " +
+      "coarsened (0 only applies the depth and children limits)")
+  private int memoryBudgetArg = 0;
+
+  @Parameter(names = "-memory-column", description = "Show the estimated memory held by each " +
+      "namespace")
+  private boolean memoryColumnArg = false;
+
+  @Parameter(names = "-coalesce", description = "Coalesce points for the same namespace over this " +
+      "many milliseconds before applying them to the trees (0 disables)")
+  private long coalesceArg = 0;
+
   @Nullable
   @Parameter(names = {"-f", "-file"}, description = "File to save exported data. " +
       "Specify with --export and (-t)ime in seconds")
@@ -156,8 +206,17 @@ public class WavefrontTop {
       IdNamespacePanel idNamespacePanel = new IdNamespacePanel(spyConfigurationPanel, gui);
       this.spyOnPoint = spyOnArg.equals("POINT");
       namespacePanel = (spyOnPoint) ? pointsNamespacePanel : idNamespacePanel;
+      pointsNamespacePanel.setShowMemory(memoryColumnArg);
       namespacePanel.setExportData(exportData, exportFile);
-
+      namespacePanel.setStatsWindow(statsWindowArg);
+
+      root.setShards(shardsArg);
+      root.setRollUp(rollUpArg);
+      root.setCoalesceWindow(coalesceArg);
+      root.setIdleTtl(TimeUnit.MINUTES.toMillis(idleTtlArg));
+      root.setMemoryBudget(memoryBudgetArg / 100.0);
+      root.setCardinalityPrecision(hllLog2mArg, hllRegwidthArg);
+      root.setOffHeap(offHeapArg);
       root.setSeparatorCharacters(separatorsArg);
       root.setMaxDepth(depthArg);
       root.setTopLevelDepth(topLevelArg);
@@ -208,25 +267,34 @@ public class WavefrontTop {
   }
 
   private void setupNamespacePanelRefresh(MultiWindowTextGUI gui) {
-    timer.scheduleAtFixedRate(new TimerTask() {
-      @Override
-      public void run() {
-        double samplingRate = pointsSpy.getSamplingRate();
-        namespacePanel.setGlobalPPS(Math.max(1, backendCount.get()) / samplingRate, root.getRate());
-        namespacePanel.setStopwatchTime(exportTime - stopwatch.elapsed(TimeUnit.SECONDS));
-        namespacePanel.setSamplingRate(samplingRate);
-        namespacePanel.setVisibleRows(gui.getScreen().getTerminalSize().getRows() - 10);
-        if (pointsSpy.isConnected()) {
-          refreshNamespacePanel(samplingRate);
-        }
+    if (refreshScheduler != null) return;
+    refreshScheduler = new RefreshScheduler(() -> {
+      double samplingRate = pointsSpy.getSamplingRate();
+      namespacePanel.setGlobalPPS(Math.max(1, backendCount.get()) / samplingRate, root.getRate());
+      namespacePanel.setStopwatchTime(Math.max(0, exportTime - stopwatch.elapsed(TimeUnit.SECONDS)));
+      namespacePanel.setSamplingRate(samplingRate);
+      namespacePanel.setIngestStatus(pointsSpy.getQueueDepth(), pointsSpy.getQueueCapacity(),
+          pointsSpy.getDroppedLines());
+      namespacePanel.setVisibleRows(gui.getScreen().getTerminalSize().getRows() - 10);
+      if (pointsSpy.isConnected()) {
+        if (memoryColumnArg) root.accountMemory();
+        refreshNamespacePanel(samplingRate);
       }
-    }, 1000, 1000);
+    }, RefreshScheduler.afterScreenUpdate(gui));
+  }
+
+  /**
+   * Refresh the namespace panel on the refresh thread, which reads the nodes, rather than the GUI
+   * thread.
+   */
+  private void requestRefresh() {
+    if (refreshScheduler != null) refreshScheduler.requestRefresh();
   }
 
   private void refreshNamespacePanel(double samplingRate) {
     if (breadCrumbs.size() >= 1) {
       Node node = breadCrumbs.get(breadCrumbs.size() - 1);
-      if (exportData && stopwatch.elapsed(TimeUnit.SECONDS) == exportTime) {
+      if (exportData && stopwatch.elapsed(TimeUnit.SECONDS) >= exportTime) {
         namespacePanel.renderNodes(node, Math.max(1, backendCount.get()) / samplingRate,
             node.getNodes().values(), true);
         try {
@@ -297,6 +365,7 @@ public class WavefrontTop {
     pointsSpy.setSpyOn(spyOnPoint);
     pointsSpy.setSamplingRate(rateArg);
     pointsSpy.setUsageDaysThreshold(usageDaysArg);
+    pointsSpy.setIngestPipeline(ingestBufferArg, ingestThreadsArg);
 
     if (spyOnPoint) {
       pointsSpy.setParameters(clusterConfigurationPanel.getClusterUrl(),
@@ -327,6 +396,11 @@ public class WavefrontTop {
             pointTags, timestamp, value);
       }
 
+      @Override
+      public void onPointReceived(PointsSpy pointsSpy, SpyPoint point) {
+        root.accept(analysisDimension, groupByIngestionSource, point);
+      }
+
       @Override
       public void onConnectivityChanged(PointsSpy pointsSpy, boolean connected,
                                         @Nullable String message) {
@@ -357,6 +431,7 @@ public class WavefrontTop {
     spyConfigurationPanel.setMaxDepth(root.getMaxDepth());
     spyConfigurationPanel.setTopLevelDepth(root.getTopLevelDepth());
     spyConfigurationPanel.setMaxChildren(root.getMaxChildren());
+    spyConfigurationPanel.setCoalesceWindow(root.getCoalesceWindow());
 
     spyConfigurationPanel.startParameters(this.spyOnPoint);
     spyConfigurationPanel.setListener(panel -> {
@@ -369,6 +444,7 @@ public class WavefrontTop {
       root.setMaxDepth(panel.getMaxDepth());
       root.setTopLevelDepth(panel.getTopLevelDepth());
       root.setMaxChildren(panel.getMaxChildren());
+      root.setCoalesceWindow(panel.getCoalesceWindow());
 
       if (spyOnPoint) {
         analysisDimension = panel.getDimension();
@@ -407,20 +483,25 @@ public class WavefrontTop {
       public void sortLeft() {
         namespacePanel.setSortIndex(
             Math.max(0, namespacePanel.getSortIndex() - 1));
-        refreshNamespacePanel(pointsSpy.getSamplingRate());
+        requestRefresh();
       }
 
       @Override
       public void sortRight() {
         namespacePanel.setSortIndex(
             Math.min(namespacePanel.getTableColumnCount() - 1, namespacePanel.getSortIndex() + 1));
-        refreshNamespacePanel(pointsSpy.getSamplingRate());
+        requestRefresh();
       }
 
       @Override
       public void reverseSort() {
         namespacePanel.toggleSortOrder();
-        refreshNamespacePanel(pointsSpy.getSamplingRate());
+        requestRefresh();
+      }
+
+      @Override
+      public void onMoreRows() {
+        requestRefresh();
       }
 
       @Override
@@ -437,7 +518,7 @@ public class WavefrontTop {
           }
         }
         computePath();
-        refreshNamespacePanel(pointsSpy.getSamplingRate());
+        requestRefresh();
       }
 
       @Override
@@ -450,7 +531,7 @@ public class WavefrontTop {
           }
         }
         computePath();
-        refreshNamespacePanel(pointsSpy.getSamplingRate());
+        requestRefresh();
       }
     });
   }
@@ -527,6 +608,35 @@ public class WavefrontTop {
     if (maxChildrenArg < 1) {
       throw new ParameterException("Invalid max children, must be > 0");
     }
+    if (ingestBufferArg < 1) {
+      throw new ParameterException("Invalid ingest buffer, must be > 0");
+    }
+    if (ingestThreadsArg < 1) {
+      throw new ParameterException("Invalid ingest threads, must be > 0");
+    }
+    if (shardsArg < 1) {
+      throw new ParameterException("Invalid shards, must be > 0");
+    }
+    if (coalesceArg < 0) {
+      throw new ParameterException("Invalid coalesce window, must be >= 0");
+    }
+    if (memoryBudgetArg < 0 || memoryBudgetArg > 100) {
+      throw new ParameterException("Invalid memory budget, must be >= 0 and <= 100");
+    }
+    if (idleTtlArg < 0) {
+      throw new ParameterException("Invalid idle TTL, must be >= 0");
+    }
+    if (!Ints.contains(RecentStats.MINUTES, statsWindowArg)) {
+      throw new ParameterException("Invalid window, must be 1, 5 or 15 minutes");
+    }
+    if (hllLog2mArg < HLL.MINIMUM_LOG2M_PARAM || hllLog2mArg > HLL.MAXIMUM_LOG2M_PARAM) {
+      throw new ParameterException("Invalid sketch log2m, must be >= " + HLL.MINIMUM_LOG2M_PARAM +
+          " and <= " + HLL.MAXIMUM_LOG2M_PARAM);
+    }
+    if (hllRegwidthArg < HLL.MINIMUM_REGWIDTH_PARAM || hllRegwidthArg > HLL.MAXIMUM_REGWIDTH_PARAM) {
+      throw new ParameterException("Invalid sketch regwidth, must be >= " + HLL.MINIMUM_REGWIDTH_PARAM +
+          " and <= " + HLL.MAXIMUM_REGWIDTH_PARAM);
+    }
 
     //check file and time given if exporting data
     if (exportData) {
@@ -0,0 +1,387 @@
+package com.wavefront.tools.wftop.components;
+
+import net.agkn.hll.HLL;
+import net.agkn.hll.HLLType;
+import net.agkn.hll.util.HLLUtil;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.function.LongSupplier;
+
+/**
+ * HyperLogLog sketch of the hosts or metrics of a {@link NamespaceNode}, either an {@link HLL} on the
+ * heap or registers in the tree's {@link NodeSlab}. Both are thread-safe and estimate the same
+ * cardinality for the same values.
+ */
+abstract class CardinalitySketch {
+
+  /**
+   * How long an estimate that takes a scan of all registers is kept while values come in.
+   */
+  static final long CACHE_MILLIS = 500;
+
+  /**
+   * @param slab Slab of the tree, null to keep the sketch on the heap.
+   */
+  static CardinalitySketch create(@Nullable NodeSlab slab, int log2m, int regwidth) {
+    return create(slab, log2m, regwidth, System::currentTimeMillis);
+  }
+
+  /**
+   * @param slab  Slab of the tree, null to keep the sketch on the heap.
+   * @param clock Current time in milliseconds.
+   */
+  static CardinalitySketch create(@Nullable NodeSlab slab, int log2m, int regwidth,
+                                  LongSupplier clock) {
+    return slab == null ? new Heap(log2m, regwidth, clock) : new Slab(slab, log2m, regwidth);
+  }
+
+  abstract void addRaw(long hash);
+
+  /**
+   * Add the first count hashes at once.
+   */
+  abstract void addRaw(long[] hashes, int count);
+
+  /**
+   * @return Estimate, which on the heap may lag values that came in during the last
+   * {@link #CACHE_MILLIS} once dense.
+   */
+  abstract long cardinality();
+
+  /**
+   * Forget all values, keeping the storage.
+   */
+  abstract void clear();
+
+  /**
+   * @return Sketch to union or clone: the live one when on the heap (guarded by its own monitor), a
+   * copy otherwise.
+   */
+  abstract HLL toHLL();
+
+  /**
+   * @return Rough size of the sketch in bytes, heap or slab.
+   */
+  abstract long estimatedBytes();
+
+  /**
+   * Give back slab storage, after which values are ignored and the sketch reads as empty. Nothing
+   * to do on the heap.
+   */
+  void release() {
+  }
+
+  private static final class Heap extends CardinalitySketch {
+    // explicit, then sparse, then dense as distinct values come in.
+    private final HLL hll;
+    private final byte log2m;
+    private final byte regwidth;
+    private final LongSupplier clock;
+    private long cardinality = 0;
+    private long computedAt;
+    // whether values came in since the estimate was computed.
+    private boolean dirty = false;
+
+    private Heap(int log2m, int regwidth, LongSupplier clock) {
+      this.hll = new HLL(log2m, regwidth);
+      this.log2m = (byte) log2m;
+      this.regwidth = (byte) regwidth;
+      this.clock = clock;
+    }
+
+    @Override
+    void addRaw(long hash) {
+      synchronized (hll) {
+        hll.addRaw(hash);
+        dirty = true;
+      }
+    }
+
+    @Override
+    void addRaw(long[] hashes, int count) {
+      synchronized (hll) {
+        for (int i = 0; i < count; i++) {
+          hll.addRaw(hashes[i]);
+        }
+        if (count > 0) dirty = true;
+      }
+    }
+
+    @Override
+    long cardinality() {
+      synchronized (hll) {
+        if (!dirty) return cardinality;
+        long now = clock.getAsLong();
+        // a scan of all registers once dense, so done at most once in a while on busy nodes.
+        if (hll.getType() == HLLType.FULL && now - computedAt <= CACHE_MILLIS) return cardinality;
+        cardinality = hll.cardinality();
+        computedAt = now;
+        dirty = false;
+        return cardinality;
+      }
+    }
+
+    @Override
+    void clear() {
+      synchronized (hll) {
+        hll.clear();
+        cardinality = 0;
+        dirty = false;
+      }
+    }
+
+    @Override
+    HLL toHLL() {
+      return hll;
+    }
+
+    @Override
+    long estimatedBytes() {
+      synchronized (hll) {
+        switch (hll.getType()) {
+          case EXPLICIT:
+            // open hash set of longs, at most 3/4 full.
+            return 96 + hll.cardinality() * 8 * 4 / 3;
+          case SPARSE:
+            // open hash map of register index to value, at most 3/4 full.
+            return 96 + Math.min(hll.cardinality(), 1L << log2m) * 5 * 4 / 3;
+          case FULL:
+            return 96 + ((long) regwidth << log2m) / 8;
+          default:
+            return 96;
+        }
+      }
+    }
+  }
+
+  /**
+   * Registers in a slab record, one byte each. Like {@link HLL}, small sets are kept exactly (in an
+   * open-addressing table of raw values overlaid on the registers) up to the same threshold, then
+   * switch to registers for good. Guarded by its own monitor.
+   * <p>
+   * Record layout: number of explicit values (-1 once dense), whether 0 is one of them (0 marks
+   * empty slots), then the table or the registers.
+   * <p>
+   * Once dense, the sum of 2^-register and the number of zero registers the estimator needs are kept
+   * up to date as registers change, so estimates never scan the registers and are never stale. The
+   * sum adds and removes powers of two from 2^-31 to 1 with register widths up to 5, which is exact
+   * (so it matches a full scan) while log2m + 31 bits fit in a double, i.e. log2m up to 21. Beyond
+   * that, or with wider registers, it rounds like the scan does, though not necessarily the same
+   * way, so estimates may differ from a full scan in the last digits.
+   */
+  private static final class Slab extends CardinalitySketch {
+    private static final int SIZE = 0;
+    private static final int HAS_ZERO = 4;
+    private static final int DATA = 8;
+    /**
+     * Cap on exact values, same as {@link HLL}.
+     */
+    private static final int MAX_EXPLICIT = 1 << 17;
+
+    private final NodeSlab slab;
+    private final long address;
+    private final byte log2m;
+    private final byte regwidth;
+    // sum of 2^-register and number of zero registers, once dense.
+    private double inverseSum;
+    private int zeros;
+    private boolean released = false;
+
+    private Slab(NodeSlab slab, int log2m, int regwidth) {
+      this.slab = slab;
+      this.log2m = (byte) log2m;
+      this.regwidth = (byte) regwidth;
+      resetRegisterSums();
+      int slots = slots(log2m, regwidth);
+      this.address = slab.allocate(bytes(log2m, regwidth));
+      if (slots == 0) slab.chunk(address).putInt(NodeSlab.offset(address) + SIZE, -1);
+    }
+
+    @Override
+    long estimatedBytes() {
+      return 32 + bytes(log2m, regwidth);
+    }
+
+    @Override
+    synchronized void release() {
+      if (released) return;
+      released = true;
+      slab.free(address, bytes(log2m, regwidth));
+    }
+
+    @Override
+    synchronized void clear() {
+      if (released) return;
+      ByteBuffer buffer = slab.chunk(address);
+      int offset = NodeSlab.offset(address);
+      int slots = slots(log2m, regwidth);
+      int bytes = Math.max(1 << log2m, slots * 8);
+      for (int i = 0; i < bytes; i += 8) {
+        buffer.putLong(offset + DATA + i, 0);
+      }
+      buffer.putInt(offset + SIZE, slots == 0 ? -1 : 0);
+      buffer.putInt(offset + HAS_ZERO, 0);
+      resetRegisterSums();
+    }
+
+    /**
+     * All registers are zero.
+     */
+    private void resetRegisterSums() {
+      inverseSum = 1 << log2m;
+      zeros = 1 << log2m;
+    }
+
+    /**
+     * @return Size of the record.
+     */
+    private static int bytes(int log2m, int regwidth) {
+      return DATA + Math.max(1 << log2m, slots(log2m, regwidth) * 8);
+    }
+
+    /**
+     * @return Exact values kept before switching to registers, as {@link HLL} computes it when left
+     * to pick (an eighth of the size of the dense representation in bytes).
+     */
+    private static int explicitThreshold(int log2m, int regwidth) {
+      return (int) Math.min(MAX_EXPLICIT, (((long) regwidth << log2m) / 8) / 8);
+    }
+
+    /**
+     * @return Slots of the table of exact values, a power of two kept at most 3/4 full.
+     */
+    private static int slots(int log2m, int regwidth) {
+      int threshold = explicitThreshold(log2m, regwidth);
+      return threshold == 0 ? 0 : Integer.highestOneBit(threshold * 4 / 3) << 1;
+    }
+
+    @Override
+    synchronized void addRaw(long hash) {
+      if (released) return;
+      add(slab.chunk(address), NodeSlab.offset(address), hash);
+    }
+
+    @Override
+    synchronized void addRaw(long[] hashes, int count) {
+      if (released) return;
+      ByteBuffer buffer = slab.chunk(address);
+      int offset = NodeSlab.offset(address);
+      for (int i = 0; i < count; i++) {
+        add(buffer, offset, hashes[i]);
+      }
+    }
+
+    private void add(ByteBuffer buffer, int offset, long hash) {
+      int size = buffer.getInt(offset + SIZE);
+      if (size < 0) {
+        setRegister(buffer, offset, hash);
+        return;
+      }
+      if (hash == 0) {
+        if (buffer.getInt(offset + HAS_ZERO) != 0) return;
+        buffer.putInt(offset + HAS_ZERO, 1);
+      } else {
+        int mask = slots(log2m, regwidth) - 1;
+        int i = (int) (hash ^ (hash >>> 32)) & mask;
+        while (true) {
+          long slot = buffer.getLong(offset + DATA + i * 8);
+          if (slot == hash) return;
+          if (slot == 0) break;
+          i = (i + 1) & mask;
+        }
+        buffer.putLong(offset + DATA + i * 8, hash);
+      }
+      if (++size > explicitThreshold(log2m, regwidth)) {
+        densify(buffer, offset, size);
+      } else {
+        buffer.putInt(offset + SIZE, size);
+      }
+    }
+
+    private void densify(ByteBuffer buffer, int offset, int size) {
+      long[] values = explicitValues(buffer, offset, size);
+      int bytes = Math.max(1 << log2m, slots(log2m, regwidth) * 8);
+      for (int i = 0; i < bytes; i += 8) {
+        buffer.putLong(offset + DATA + i, 0);
+      }
+      buffer.putInt(offset + SIZE, -1);
+      buffer.putInt(offset + HAS_ZERO, 0);
+      resetRegisterSums();
+      for (long value : values) {
+        setRegister(buffer, offset, value);
+      }
+    }
+
+    /**
+     * Same register update as {@link HLL}.
+     */
+    private void setRegister(ByteBuffer buffer, int offset, long hash) {
+      long substream = hash >>> log2m;
+      // the estimator does not cover a zero substream.
+      if (substream == 0) return;
+      byte value = (byte) (1 + Long.numberOfTrailingZeros(substream | HLLUtil.pwMaxMask(regwidth)));
+      int register = offset + DATA + (int) (hash & ((1 << log2m) - 1));
+      byte previous = buffer.get(register);
+      if (previous >= value) return;
+      buffer.put(register, value);
+      inverseSum += 1.0 / (1L << value) - 1.0 / (1L << previous);
+      if (previous == 0) zeros--;
+    }
+
+    private long[] explicitValues(ByteBuffer buffer, int offset, int size) {
+      boolean hasZero = buffer.getInt(offset + HAS_ZERO) != 0;
+      long[] values = new long[size];
+      int n = 0;
+      if (hasZero) values[n++] = 0;
+      int slots = slots(log2m, regwidth);
+      for (int i = 0; i < slots && n < values.length; i++) {
+        long slot = buffer.getLong(offset + DATA + i * 8);
+        if (slot != 0) values[n++] = slot;
+      }
+      return values;
+    }
+
+    @Override
+    synchronized long cardinality() {
+      if (released) return 0;
+      ByteBuffer buffer = slab.chunk(address);
+      int offset = NodeSlab.offset(address);
+      int size = buffer.getInt(offset + SIZE);
+      if (size >= 0) return size;
+      int m = 1 << log2m;
+      // same estimator and corrections as HLL.
+      double estimate = HLLUtil.alphaMSquared(m) / inverseSum;
+      if (zeros != 0 && estimate < HLLUtil.smallEstimatorCutoff(m)) {
+        estimate = HLLUtil.smallEstimator(m, zeros);
+      } else if (estimate > HLLUtil.largeEstimatorCutoff(log2m, regwidth)) {
+        estimate = HLLUtil.largeEstimator(log2m, regwidth, estimate);
+      }
+      return (long) Math.ceil(estimate);
+    }
+
+    @Override
+    synchronized HLL toHLL() {
+      if (released) return new HLL(log2m, regwidth);
+      ByteBuffer buffer = slab.chunk(address);
+      int offset = NodeSlab.offset(address);
+      int size = buffer.getInt(offset + SIZE);
+      if (size >= 0) {
+        HLL hll = new HLL(log2m, regwidth);
+        for (long value : explicitValues(buffer, offset, size)) {
+          hll.addRaw(value);
+        }
+        return hll;
+      }
+      // replay each register as a hash that sets exactly that register to its value (without an
+      // explicit phase, which would count the replayed hashes instead).
+      HLL hll = new HLL(log2m, regwidth, 0, true, HLLType.EMPTY);
+      int m = 1 << log2m;
+      for (int i = 0; i < m; i++) {
+        byte register = buffer.get(offset + DATA + i);
+        if (register > 0) hll.addRaw(i | ((1L << (register - 1)) << log2m));
+      }
+      return hll;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.Arrays;
+
+/**
+ * Points for the same namespace input folded together by {@link PointCoalescer}, so that they can
+ * be applied to a tree with a single walk. Only written by the thread that owns the buffer it is in,
+ * and no longer modified once handed off to be applied.
+ */
+final class CoalescedPoints {
+
+  int count = 0;
+  /**
+   * Points that were spied on (as opposed to id creations), which also track accessed, lag and
+   * min/max.
+   */
+  int spied = 0;
+  int accessed = 0;
+  double min = Double.MAX_VALUE;
+  double max = -Double.MAX_VALUE;
+  long[] lags = new long[4];
+  final Fingerprints hostHashes = new Fingerprints();
+  final Fingerprints metricHashes = new Fingerprints();
+
+  void add(long hostHash, long metricHash, long lag, double value, boolean accessed,
+           boolean spyOnPoint) {
+    count++;
+    hostHashes.add(hostHash);
+    metricHashes.add(metricHash);
+    if (spyOnPoint) {
+      if (spied == lags.length) lags = Arrays.copyOf(lags, spied * 2);
+      lags[spied++] = lag;
+      if (accessed) this.accessed++;
+      if (value < min) min = value;
+      if (value > max) max = value;
+    }
+  }
+
+  /**
+   * Distinct host or metric hashes, in the order they were first seen.
+   */
+  static final class Fingerprints {
+    long[] values = new long[4];
+    int size = 0;
+    // open addressing over the non-zero hashes.
+    private long[] table = new long[8];
+    private boolean zero = false;
+
+    void add(long hash) {
+      if (hash == 0) {
+        if (zero) return;
+        zero = true;
+      } else {
+        int mask = table.length - 1;
+        int i = (int) (hash ^ (hash >>> 32)) & mask;
+        while (table[i] != 0) {
+          if (table[i] == hash) return;
+          i = (i + 1) & mask;
+        }
+        table[i] = hash;
+      }
+      if (size == values.length) values = Arrays.copyOf(values, size * 2);
+      values[size++] = hash;
+      if (size * 2 > table.length) rehash();
+    }
+
+    private void rehash() {
+      table = new long[table.length * 2];
+      int mask = table.length - 1;
+      for (int j = 0; j < size; j++) {
+        long hash = values[j];
+        if (hash == 0) continue;
+        int i = (int) (hash ^ (hash >>> 32)) & mask;
+        while (table[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        table[i] = hash;
+      }
+    }
+  }
+}
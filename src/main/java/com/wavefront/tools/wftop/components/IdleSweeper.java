@@ -0,0 +1,59 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Daemon thread that periodically evicts namespaces that have been idle for longer than a TTL from
+ * all trees (see {@link NamespaceBuilder#evictIdle}), so that bursts of short-lived namespaces (deploy
+ * ids, ephemeral hosts) neither hold on to memory nor keep their parent at the branch limit for the
+ * rest of a long session.
+ */
+class IdleSweeper {
+
+  private static final Logger log = Logger.getLogger(IdleSweeper.class.getCanonicalName());
+
+  private final RootNode root;
+  private final long ttlMillis;
+  private final long periodMillis;
+  private final Thread sweeper;
+  private volatile boolean running = true;
+
+  IdleSweeper(RootNode root, long ttlMillis) {
+    if (ttlMillis < 1) {
+      throw new IllegalArgumentException("Cannot evict namespaces idle for < 1ms");
+    }
+    this.root = root;
+    this.ttlMillis = ttlMillis;
+    // namespaces outlive their TTL by at most a tenth of it, sweeping at least once a minute.
+    this.periodMillis = Math.max(1, Math.min(ttlMillis / 10, 60_000));
+    this.sweeper = new Thread(this::work, "wftop-sweeper");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  void shutdown() {
+    running = false;
+    sweeper.interrupt();
+  }
+
+  private void work() {
+    while (running) {
+      try {
+        Thread.sleep(periodMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        int evicted = root.evictIdle(ttlMillis);
+        if (evicted > 0) log.fine("Evicted " + evicted + " idle namespaces");
+      } catch (Exception ex) {
+        log.log(Level.WARNING, "Failed to evict idle namespaces", ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.wavefront.tools.wftop.components;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipeline stage between the spy connection and the namespace trees. The I/O thread only frames
+ * lines into a {@link RingBuffer}, consumer threads decode them and update the trees, so a slow
+ * tree update never stalls the socket read (lines are dropped instead, and counted). Lines are kept
+ * as raw bytes so nothing is decoded before a consumer asks for it.
+ */
+public class IngestPipeline {
+
+  private static final Logger log = Logger.getLogger(IngestPipeline.class.getCanonicalName());
+
+  private final RingBuffer<Line> ring;
+  private final List<Thread> consumers = new ArrayList<>();
+  private final ThreadLocal<Line> publishing = ThreadLocal.withInitial(Line::new);
+  private volatile boolean running = true;
+
+  /**
+   * @param capacity Number of lines that can be buffered.
+   * @param threads  Number of consumer threads.
+   * @param handlers Creates the handler of each consumer thread (handlers are never shared).
+   */
+  public IngestPipeline(int capacity, int threads, Supplier<LineHandler> handlers) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Cannot create ingest pipeline with < 1 thread");
+    }
+    this.ring = new RingBuffer<>(capacity, Line::new);
+    for (int i = 0; i < threads; i++) {
+      LineHandler handler = handlers.get();
+      Thread thread = new Thread(() -> consume(handler), "wftop-ingest-" + i);
+      thread.setDaemon(true);
+      consumers.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * Called from the I/O thread, copies the line into the ring.
+   *
+   * @return false if the line was dropped as the pipeline is full.
+   */
+  public boolean publish(byte[] line, int length) {
+    Line src = publishing.get();
+    src.bytes = line;
+    src.length = length;
+    try {
+      return ring.offer(Line::copyFrom, src);
+    } finally {
+      src.bytes = null;
+    }
+  }
+
+  /**
+   * Drop lines that have not been consumed yet (e.g. on reconnect with different parameters).
+   */
+  public void clear() {
+    ring.clear();
+  }
+
+  public int getQueueDepth() {
+    return ring.size();
+  }
+
+  public int getCapacity() {
+    return ring.capacity();
+  }
+
+  public long getDropped() {
+    return ring.getDropped();
+  }
+
+  public void shutdown() {
+    running = false;
+    for (Thread thread : consumers) {
+      thread.interrupt();
+    }
+  }
+
+  private void consume(LineHandler handler) {
+    Line line = new Line();
+    while (running) {
+      Line filled;
+      try {
+        filled = ring.poll(line, 100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (filled == null) continue;
+      line = filled;
+      try {
+        handler.onLine(line.bytes, line.length);
+      } catch (Exception ex) {
+        log.log(Level.WARNING, "Failed to process line: " +
+            new String(line.bytes, 0, line.length, StandardCharsets.UTF_8), ex);
+      }
+    }
+  }
+
+  public interface LineHandler {
+    /**
+     * @param line   Raw bytes of the line, only valid for the duration of the call.
+     * @param length Length of the line.
+     */
+    void onLine(byte[] line, int length);
+  }
+
+  /**
+   * Reusable ring slot holding a single line.
+   */
+  private static class Line {
+    private byte[] bytes = new byte[256];
+    private int length = 0;
+
+    private void copyFrom(Line src) {
+      if (src.length > bytes.length) {
+        bytes = new byte[Math.max(src.length, bytes.length * 2)];
+      }
+      System.arraycopy(src.bytes, 0, bytes, 0, src.length);
+      length = src.length;
+    }
+  }
+}
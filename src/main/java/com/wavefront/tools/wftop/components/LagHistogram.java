@@ -0,0 +1,53 @@
+package com.wavefront.tools.wftop.components;
+
+import io.dropwizard.metrics5.Histogram;
+
+import java.util.List;
+
+/**
+ * Lag of a namespace: a {@link Histogram} over a {@link LagSketch}, so that the lag of several
+ * namespaces can be merged exactly. Count and sum cover the whole session, quantiles the last few
+ * minutes.
+ */
+final class LagHistogram extends Histogram {
+
+  private final LagSketch sketch;
+
+  LagHistogram() {
+    this(new LagSketch());
+  }
+
+  private LagHistogram(LagSketch sketch) {
+    super(sketch);
+    this.sketch = sketch;
+  }
+
+  /**
+   * @param histograms Lag of namespaces (all {@link LagHistogram}s).
+   * @return Lag of all the namespaces together.
+   */
+  static LagHistogram merge(List<Histogram> histograms) {
+    LagSketch merged = new LagSketch();
+    for (Histogram histogram : histograms) {
+      merged.merge(((LagHistogram) histogram).sketch);
+    }
+    return new LagHistogram(merged);
+  }
+
+  /**
+   * @return Rough size of the histogram in bytes.
+   */
+  long estimatedBytes() {
+    return 32 + sketch.estimatedBytes();
+  }
+
+  @Override
+  public long getCount() {
+    return sketch.getTotalCount();
+  }
+
+  @Override
+  public long getSum() {
+    return sketch.getTotalSum();
+  }
+}
@@ -0,0 +1,319 @@
+package com.wavefront.tools.wftop.components;
+
+import io.dropwizard.metrics5.Reservoir;
+import io.dropwizard.metrics5.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Lag distribution over the last {@link #WINDOWS} windows of {@link #WINDOW_MILLIS}, so that lag
+ * quantiles describe current traffic rather than the whole session. Lags are counted in log-linear
+ * buckets (HDR-style): exact below {@link #SUB_BUCKETS}, then {@link #SUB_BUCKETS} buckets per
+ * power of two, so quantiles are within about 6% of the exact ones.
+ * <p>
+ * Windows are aligned on wall-clock time, which makes sketches mergeable by adding up the buckets
+ * of matching windows (see {@link #merge}). Expired windows are recycled. Reading a snapshot walks
+ * the buckets (not the points) and is cached until the next update or window change. Guarded by
+ * its own monitor.
+ */
+final class LagSketch implements Reservoir {
+
+  static final long WINDOW_MILLIS = 60_000;
+  static final int WINDOWS = 5;
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int[] NONE = new int[0];
+
+  private final LongSupplier clock;
+  // ring of windows, indexed by epoch modulo WINDOWS.
+  private final Window[] windows = new Window[WINDOWS];
+  private long totalCount = 0;
+  private long totalSum = 0;
+  /**
+   * Bumped on every change, tells whether {@link #cached} is still current.
+   */
+  private long version = 0;
+  private Snapshot cached = null;
+  private long cachedVersion = -1;
+  private long cachedEpoch = -1;
+
+  LagSketch() {
+    this(System::currentTimeMillis);
+  }
+
+  /**
+   * @param clock Current time in milliseconds.
+   */
+  LagSketch(LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * @return Number of lags in the live windows.
+   */
+  @Override
+  public synchronized int size() {
+    return getSnapshot().size();
+  }
+
+  @Override
+  public synchronized void update(long lag) {
+    window(epoch()).add(lag);
+    totalCount++;
+    totalSum += lag;
+    version++;
+  }
+
+  /**
+   * @return Number of lags since the sketch was created, expired or not.
+   */
+  synchronized long getTotalCount() {
+    return totalCount;
+  }
+
+  /**
+   * @return Sum of lags since the sketch was created, expired or not.
+   */
+  synchronized long getTotalSum() {
+    return totalSum;
+  }
+
+  /**
+   * @return Rough size of the windows in bytes.
+   */
+  synchronized long estimatedBytes() {
+    long bytes = 96;
+    for (Window window : windows) {
+      if (window != null) bytes += 72 + 16 + window.buckets.length * 4;
+    }
+    return bytes;
+  }
+
+  @Override
+  public synchronized Snapshot getSnapshot() {
+    long epoch = epoch();
+    if (cached != null && cachedVersion == version && cachedEpoch == epoch) return cached;
+    Window merged = new Window(epoch);
+    for (Window window : windows) {
+      if (isLive(window, epoch)) merged.add(window);
+    }
+    cached = new WindowSnapshot(merged);
+    cachedVersion = version;
+    cachedEpoch = epoch;
+    return cached;
+  }
+
+  /**
+   * Add the lags of other to this sketch (other is only locked while copied).
+   */
+  void merge(LagSketch other) {
+    Window[] copies = new Window[WINDOWS];
+    long count, sum;
+    synchronized (other) {
+      long epoch = other.epoch();
+      for (int i = 0; i < WINDOWS; i++) {
+        Window window = other.windows[i];
+        if (isLive(window, epoch)) {
+          copies[i] = new Window(window.epoch);
+          copies[i].add(window);
+        }
+      }
+      count = other.totalCount;
+      sum = other.totalSum;
+    }
+    synchronized (this) {
+      for (Window copy : copies) {
+        if (copy == null) continue;
+        Window window = window(copy.epoch);
+        // older than all of our windows.
+        if (window != null) window.add(copy);
+      }
+      totalCount += count;
+      totalSum += sum;
+      version++;
+    }
+  }
+
+  private long epoch() {
+    return clock.getAsLong() / WINDOW_MILLIS;
+  }
+
+  private static boolean isLive(Window window, long epoch) {
+    return window != null && window.epoch <= epoch && window.epoch > epoch - WINDOWS;
+  }
+
+  /**
+   * @return Window for epoch, recycling the expired one in its slot, null if the slot already
+   * holds a later window.
+   */
+  private Window window(long epoch) {
+    int slot = (int) (epoch % WINDOWS);
+    Window window = windows[slot];
+    if (window == null) {
+      window = new Window(epoch);
+      windows[slot] = window;
+    } else if (window.epoch < epoch) {
+      window.reset(epoch);
+    } else if (window.epoch > epoch) {
+      return null;
+    }
+    return window;
+  }
+
+  static int bucket(long lag) {
+    if (lag < SUB_BUCKETS) return (int) Math.max(0, lag);
+    int exponent = 63 - Long.numberOfLeadingZeros(lag);
+    return ((exponent - SUB_BITS + 1) << SUB_BITS) +
+        (int) ((lag >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+  }
+
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int shift = (bucket >>> SUB_BITS) - 1;
+    return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+  }
+
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    return lowerBound(bucket) + (1L << ((bucket >>> SUB_BITS) - 1)) - 1;
+  }
+
+  private static final class Window {
+    private long epoch;
+    private int[] buckets = NONE;
+    private long count;
+    private double sum;
+    private double sumOfSquares;
+    private long min;
+    private long max;
+
+    private Window(long epoch) {
+      reset(epoch);
+    }
+
+    private void reset(long epoch) {
+      this.epoch = epoch;
+      Arrays.fill(buckets, 0);
+      count = 0;
+      sum = 0;
+      sumOfSquares = 0;
+      min = Long.MAX_VALUE;
+      max = Long.MIN_VALUE;
+    }
+
+    private void add(long lag) {
+      int bucket = bucket(lag);
+      if (bucket >= buckets.length) buckets = Arrays.copyOf(buckets, bucket + 1);
+      buckets[bucket]++;
+      count++;
+      sum += lag;
+      sumOfSquares += (double) lag * lag;
+      min = Math.min(min, lag);
+      max = Math.max(max, lag);
+    }
+
+    private void add(Window other) {
+      if (other.buckets.length > buckets.length) {
+        buckets = Arrays.copyOf(buckets, other.buckets.length);
+      }
+      for (int i = 0; i < other.buckets.length; i++) {
+        buckets[i] += other.buckets[i];
+      }
+      count += other.count;
+      sum += other.sum;
+      sumOfSquares += other.sumOfSquares;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+  }
+
+  /**
+   * Quantiles of the merged live windows, each lag standing for the middle of its bucket (clamped to
+   * the exact min and max).
+   */
+  private static final class WindowSnapshot extends Snapshot {
+    private final Window window;
+
+    private WindowSnapshot(Window window) {
+      this.window = window;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+      if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+        throw new IllegalArgumentException(quantile + " is not in [0..1]");
+      }
+      if (window.count == 0) return 0.0;
+      long rank = Math.max(1, (long) Math.ceil(quantile * window.count));
+      long seen = 0;
+      for (int i = 0; i < window.buckets.length; i++) {
+        seen += window.buckets[i];
+        if (seen >= rank) return value(i);
+      }
+      return window.max;
+    }
+
+    private double value(int bucket) {
+      double middle = (lowerBound(bucket) + upperBound(bucket)) / 2.0;
+      return Math.max(window.min, Math.min(window.max, middle));
+    }
+
+    /**
+     * @return One (bucketed) value per lag, sorted.
+     */
+    @Override
+    public long[] getValues() {
+      long[] values = new long[size()];
+      int n = 0;
+      for (int i = 0; i < window.buckets.length && n < values.length; i++) {
+        long value = Math.round(value(i));
+        for (int j = 0; j < window.buckets[i] && n < values.length; j++) {
+          values[n++] = value;
+        }
+      }
+      return values;
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(Integer.MAX_VALUE, window.count);
+    }
+
+    @Override
+    public long getMax() {
+      return window.count == 0 ? 0 : window.max;
+    }
+
+    @Override
+    public double getMean() {
+      return window.count == 0 ? 0 : window.sum / window.count;
+    }
+
+    @Override
+    public long getMin() {
+      return window.count == 0 ? 0 : window.min;
+    }
+
+    @Override
+    public double getStdDev() {
+      if (window.count <= 1) return 0;
+      double variance = (window.sumOfSquares - window.sum * window.sum / window.count) /
+          (window.count - 1);
+      return Math.sqrt(Math.max(0, variance));
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+      try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+        for (long value : getValues()) {
+          out.printf("%d%n", value);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package com.wavefront.tools.wftop.components;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the trees within a share of the max heap. The collection usage threshold of the heap pools
+ * (usage right after a GC, i.e. what is actually retained) is set to that share; when a pool crosses
+ * it, a daemon thread pauses the creation of namespaces and coarsens the least valuable subtrees
+ * (see {@link NamespaceBuilder#coarsen}), a step at a time until the pools are back under their
+ * threshold, at which point namespaces may be created again.
+ * <p>
+ * Only the heap is watched: in off-heap mode, sketches live outside of it.
+ */
+class MemoryBudget {
+
+  private static final Logger log = Logger.getLogger(MemoryBudget.class.getCanonicalName());
+  private static final long PERIOD_MILLIS = 5_000;
+  /**
+   * Share of the trees' estimated bytes freed by each step.
+   */
+  private static final double STEP = 0.25;
+
+  private final RootNode root;
+  private final double heapFraction;
+  private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+  private final NotificationEmitter emitter =
+      (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+  private final NotificationListener listener = this::onNotification;
+  private final Thread enforcer;
+  private volatile boolean running = true;
+
+  /**
+   * @param heapFraction Share of the max heap the trees may retain, in (0, 1].
+   */
+  MemoryBudget(RootNode root, double heapFraction) {
+    if (heapFraction <= 0 || heapFraction > 1) {
+      throw new IllegalArgumentException("Memory budget must be in (0, 1] of the max heap");
+    }
+    this.root = root;
+    this.heapFraction = heapFraction;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      long max = pool.getUsage().getMax();
+      if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() &&
+          max > 0) {
+        pool.setCollectionUsageThreshold((long) (max * heapFraction));
+        pools.add(pool);
+      }
+    }
+    emitter.addNotificationListener(listener, null, null);
+    this.enforcer = new Thread(this::work, "wftop-memory-budget");
+    enforcer.setDaemon(true);
+    enforcer.start();
+  }
+
+  double getHeapFraction() {
+    return heapFraction;
+  }
+
+  void shutdown() {
+    running = false;
+    enforcer.interrupt();
+    try {
+      emitter.removeNotificationListener(listener);
+    } catch (ListenerNotFoundException e) {
+      // never added.
+    }
+    for (MemoryPoolMXBean pool : pools) {
+      pool.setCollectionUsageThreshold(0);
+    }
+  }
+
+  /**
+   * @return Whether retained memory is over budget, as of the last GC of each pool.
+   */
+  boolean isExceeded() {
+    if (pools.isEmpty()) {
+      // no pool to watch (e.g. no max heap), fall back to current usage.
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory() > runtime.maxMemory() * heapFraction;
+    }
+    for (MemoryPoolMXBean pool : pools) {
+      if (pool.isCollectionUsageThresholdExceeded()) return true;
+    }
+    return false;
+  }
+
+  private void onNotification(Notification notification, Object handback) {
+    if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+      LockSupport.unpark(enforcer);
+    }
+  }
+
+  private void work() {
+    while (running) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(PERIOD_MILLIS));
+      if (Thread.interrupted()) return;
+      try {
+        if (isExceeded()) {
+          root.setExpansionPaused(true);
+          long total = root.accountMemory();
+          long freed = root.coarsen(STEP);
+          log.info("Over memory budget, coarsened namespaces holding ~" + freed + " of ~" +
+              total + " bytes");
+        } else {
+          root.setExpansionPaused(false);
+        }
+      } catch (Exception ex) {
+        log.log(Level.WARNING, "Failed to enforce memory budget", ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package com.wavefront.tools.wftop.components;
+
+import com.google.common.util.concurrent.AtomicDouble;
+import io.dropwizard.metrics5.Histogram;
+import io.dropwizard.metrics5.Metered;
+import net.agkn.hll.HLL;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Read-only view that merges several namespace roots: counters are summed, cardinality sketches
+ * are unioned and lag sketches are merged. Merged
+ * statistics are cached for a short while since the UI asks for them repeatedly while sorting.
+ */
+public class MergedNode implements Node<NamespaceNode> {
+
+  private static final long CACHE_MILLIS = 500;
+
+  private final String value;
+  private final Supplier<List<NamespaceNode>> roots;
+  private final Metered rate = new SummingRate();
+  private volatile Merged merged = null;
+
+  /**
+   * @param value Name of the view.
+   * @param roots Supplies the current roots to merge (they might be replaced on reset).
+   */
+  public MergedNode(String value, Supplier<List<NamespaceNode>> roots) {
+    this.value = value;
+    this.roots = roots;
+  }
+
+  @Override
+  public String getValue() {
+    return value;
+  }
+
+  @Override
+  public String getFlattened() {
+    return value;
+  }
+
+  @Override
+  public long getEstimatedHostCardinality() {
+    return merged().hostCardinality;
+  }
+
+  @Override
+  public long getEstimatedMetricCardinality() {
+    return merged().metricCardinality;
+  }
+
+  @Override
+  public Histogram getLag() {
+    return merged().lag;
+  }
+
+  @Override
+  public int getAccessed() {
+    return merged().accessed;
+  }
+
+  @Override
+  public Metered getRate() {
+    return rate;
+  }
+
+  @Override
+  public RecentStats getRecentStats(int minutes) {
+    RecentStats recent = RecentStats.EMPTY;
+    for (NamespaceNode root : roots.get()) {
+      recent = recent.plus(root.getRecentStats(minutes));
+    }
+    return recent;
+  }
+
+  @Override
+  public void markVisible() {
+    for (NamespaceNode root : roots.get()) {
+      root.markVisible();
+    }
+  }
+
+  @Override
+  public long getEstimatedBytes() {
+    long bytes = 0;
+    for (NamespaceNode root : roots.get()) {
+      bytes += root.getEstimatedBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  public boolean isLimited() {
+    for (NamespaceNode root : roots.get()) {
+      if (root.isLimited()) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public AtomicDouble getMin() {
+    return new AtomicDouble(merged().min);
+  }
+
+  @Override
+  public AtomicDouble getMax() {
+    return new AtomicDouble(merged().max);
+  }
+
+  @Override
+  public double getRange() {
+    Merged merged = merged();
+    return merged.max - merged.min;
+  }
+
+  /**
+   * @return Union of the roots' children (roots are expected to have disjoint children).
+   */
+  @Override
+  public Map<String, NamespaceNode> getNodes() {
+    Map<String, NamespaceNode> nodes = new HashMap<>();
+    for (NamespaceNode root : roots.get()) {
+      nodes.putAll(root.getNodes());
+    }
+    return nodes;
+  }
+
+  private Merged merged() {
+    Merged merged = this.merged;
+    long now = System.currentTimeMillis();
+    if (merged == null || now - merged.computedAt > CACHE_MILLIS) {
+      merged = new Merged(roots.get(), now);
+      this.merged = merged;
+    }
+    return merged;
+  }
+
+  /**
+   * @return into (or a copy of hll if into is null) after adding hll to it.
+   */
+  static HLL union(@Nullable HLL into, HLL hll) {
+    synchronized (hll) {
+      if (into == null) {
+        try {
+          return hll.clone();
+        } catch (CloneNotSupportedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      into.union(hll);
+      return into;
+    }
+  }
+
+  private static final class Merged {
+    private final long computedAt;
+    private final long hostCardinality;
+    private final long metricCardinality;
+    private final Histogram lag;
+    private final int accessed;
+    private final double min;
+    private final double max;
+
+    private Merged(List<NamespaceNode> roots, long computedAt) {
+      this.computedAt = computedAt;
+      HLL hosts = null, metrics = null;
+      List<Histogram> lags = new ArrayList<>(roots.size());
+      int accessed = 0;
+      double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+      for (NamespaceNode root : roots) {
+        hosts = union(hosts, root.hostSketch());
+        metrics = union(metrics, root.metricSketch());
+        lags.add(root.getLag());
+        accessed += root.getAccessed();
+        min = Math.min(min, root.getMin().get());
+        max = Math.max(max, root.getMax().get());
+      }
+      this.hostCardinality = hosts == null ? 0 : hosts.cardinality();
+      this.metricCardinality = metrics == null ? 0 : metrics.cardinality();
+      this.lag = LagHistogram.merge(lags);
+      this.accessed = accessed;
+      this.min = min;
+      this.max = max;
+    }
+  }
+
+  /**
+   * Rates of the merged roots, summed when read.
+   */
+  private class SummingRate implements Metered {
+    @Override
+    public long getCount() {
+      long count = 0;
+      for (NamespaceNode root : roots.get()) count += root.getRate().getCount();
+      return count;
+    }
+
+    @Override
+    public long getSum() {
+      long sum = 0;
+      for (NamespaceNode root : roots.get()) sum += root.getRate().getSum();
+      return sum;
+    }
+
+    @Override
+    public double getMeanRate() {
+      double rate = 0;
+      for (NamespaceNode root : roots.get()) rate += root.getRate().getMeanRate();
+      return rate;
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+      double rate = 0;
+      for (NamespaceNode root : roots.get()) rate += root.getRate().getOneMinuteRate();
+      return rate;
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+      double rate = 0;
+      for (NamespaceNode root : roots.get()) rate += root.getRate().getFiveMinuteRate();
+      return rate;
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+      double rate = 0;
+      for (NamespaceNode root : roots.get()) rate += root.getRate().getFifteenMinuteRate();
+      return rate;
+    }
+  }
+}
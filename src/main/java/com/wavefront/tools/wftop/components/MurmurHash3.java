@@ -1,5 +1,7 @@
 package com.wavefront.tools.wftop.components;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * The MurmurHash3 algorithm was created by Austin Appleby and placed in the public domain. This java port was authored
  * by Yonik Seeley and also placed into the public domain. The author hereby disclaims copyright to this source code.
@@ -324,4 +326,98 @@ public final class MurmurHash3 {
     out.val2 = h2;
   }
 
+  /**
+   * Returns the MurmurHash3_x64_128 hash of the UTF-8 bytes of the String, placing the result in "out". ASCII strings
+   * are hashed straight from their chars, without encoding them to a temporary buffer; anything else is hashed from
+   * String.getBytes(UTF_8) so that the result is always the same as hashing those bytes.
+   */
+  public static void murmurhash3_x64_128(CharSequence data, int offset, int len, int seed, LongPair out) {
+    long h1 = seed & 0x00000000FFFFFFFFL;
+    long h2 = seed & 0x00000000FFFFFFFFL;
+
+    final long c1 = 0x87c37b91114253d5L;
+    final long c2 = 0x4cf5ad432745937fL;
+
+    int end = offset + len;
+    int roundedEnd = offset + (len & 0xFFFFFFF0);  // round down to 16 char block
+    for (int i = offset; i < roundedEnd; i += 16) {
+      long k1 = 0;
+      long k2 = 0;
+      for (int j = 0; j < 8; j++) {
+        char lo = data.charAt(i + j);
+        char hi = data.charAt(i + j + 8);
+        if ((lo | hi) >= 0x80) {
+          hashUtf8Bytes(data, offset, len, seed, out);
+          return;
+        }
+        k1 |= (long) lo << (j << 3);
+        k2 |= (long) hi << (j << 3);
+      }
+      k1 *= c1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= c2;
+      h1 ^= k1;
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+      k2 *= c2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= c1;
+      h2 ^= k2;
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    long k1 = 0;
+    long k2 = 0;
+    for (int i = roundedEnd; i < end; i++) {
+      char c = data.charAt(i);
+      if (c >= 0x80) {
+        hashUtf8Bytes(data, offset, len, seed, out);
+        return;
+      }
+      int shift = ((i - roundedEnd) & 7) << 3;
+      if (i - roundedEnd < 8) {
+        k1 |= (long) c << shift;
+      } else {
+        k2 |= (long) c << shift;
+      }
+    }
+    if ((len & 15) > 8) {
+      k2 *= c2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= c1;
+      h2 ^= k2;
+    }
+    if ((len & 15) > 0) {
+      k1 *= c1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= c2;
+      h1 ^= k1;
+    }
+
+    //----------
+    // finalization
+
+    h1 ^= len;
+    h2 ^= len;
+
+    h1 += h2;
+    h2 += h1;
+
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+
+    h1 += h2;
+    h2 += h1;
+
+    out.val1 = h1;
+    out.val2 = h2;
+  }
+
+  private static void hashUtf8Bytes(CharSequence data, int offset, int len, int seed, LongPair out) {
+    byte[] bytes = data.subSequence(offset, offset + len).toString().getBytes(StandardCharsets.UTF_8);
+    murmurhash3_x64_128(bytes, 0, bytes.length, seed, out);
+  }
 }
@@ -3,25 +3,107 @@ package com.wavefront.tools.wftop.components;
 import com.google.common.annotations.VisibleForTesting;
 
 import javax.annotation.Nullable;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Ingest metric names and produce a tree of namespaces.
+ * Ingest metric names and produce a tree of namespaces. Several threads may call
+ * {@link #accept} concurrently; see {@link NamespaceNode} for how each node is kept consistent.
+ * The nodes an input resolves to are kept in a {@link PathCache} so repeated series don't walk the
+ * tree again.
  *
  * @author Clement Pang (clement@wavefront.com).
  */
 public class NamespaceBuilder {
 
-  private String separators = ".-_=";
-  private int depthLimit = 10;
-  private int branchLimit = 1000;
-  private int topLevelDepth = 1;
+  private static final int PATH_CACHE_SIZE = 4096;
 
-  private NamespaceNode root = new NamespaceNode("");
+  private volatile String separators = ".-_=";
+  private volatile int depthLimit = 10;
+  private volatile int branchLimit = 1000;
+  private volatile int topLevelDepth = 1;
+
+  private volatile boolean rollUp = false;
+  private volatile int log2m = NodeStats.DEFAULT_LOG2M;
+  private volatile int regwidth = NodeStats.DEFAULT_REGWIDTH;
+  private volatile boolean offHeap = false;
+  /**
+   * Whether points may create namespaces, see {@link #setExpansionPaused}.
+   */
+  private volatile boolean expansionPaused = false;
+
+  private volatile NamespaceNode root = new NamespaceNode("");
+  /**
+   * Bumped whenever cached paths become invalid (the tree or how inputs are split changed).
+   */
+  private final AtomicInteger generation = new AtomicInteger();
+  private final PathCache pathCache = new PathCache(PATH_CACHE_SIZE);
 
   public void setSeparatorCharacters(String separators) {
     this.separators = separators;
-    this.root = new NamespaceNode("");
+    reset();
+  }
+
+  /**
+   * Only update the deepest node reached by each point, ancestors then merge their subtree when
+   * read (see {@link NamespaceNode}). Resets the tree.
+   */
+  public void setRollUp(boolean rollUp) {
+    this.rollUp = rollUp;
+    reset();
+  }
+
+  public boolean isRollUp() {
+    return rollUp;
+  }
+
+  /**
+   * Parameters of the root's cardinality sketches, deeper namespaces use fewer registers (see
+   * {@link NodeStats#child}). Resets the tree.
+   *
+   * @param log2m    Log2 of the number of registers.
+   * @param regwidth Bits per register.
+   */
+  public void setCardinalityPrecision(int log2m, int regwidth) {
+    // fail before dropping the tree.
+    new NodeStats(false, log2m, regwidth);
+    this.log2m = log2m;
+    this.regwidth = regwidth;
+    reset();
+  }
+
+  /**
+   * Keep counters and sketches of the tree in an off-heap {@link NodeSlab} rather than in many
+   * small heap objects. Resets the tree.
+   */
+  public void setOffHeap(boolean offHeap) {
+    this.offHeap = offHeap;
+    reset();
+  }
+
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  /**
+   * Stop creating namespaces, e.g. while memory is short: points only reach the namespaces that
+   * already exist on their path (as if the next one had reached the branch limit, without flagging
+   * it as limited).
+   */
+  public void setExpansionPaused(boolean expansionPaused) {
+    if (this.expansionPaused == expansionPaused) return;
+    this.expansionPaused = expansionPaused;
+    // cached paths either stop short or would keep growing the tree.
+    generation.incrementAndGet();
+  }
+
+  public boolean isExpansionPaused() {
+    return expansionPaused;
   }
 
   public NamespaceNode getRoot() {
@@ -31,20 +113,94 @@ public class NamespaceBuilder {
   /**
    * @param spyOnPoint When spy on ID (spyOnPoint == false), there is no access, lag, or range information.
    */
-  public synchronized void accept(String input, @Nullable String host,
-                                  @Nullable String metric, long timestamp, double value,
-                                  boolean accessed, boolean spyOnPoint) {
-    int topLevel = topLevelDepth;
-    MurmurHash3.LongPair longPair = new MurmurHash3.LongPair();
-    long lag = 0;
-    root.rate.mark();
-    updateCardinality(root, metric, host, longPair);
-    if (spyOnPoint) {
-      if (accessed) root.accessed++;
-      lag = System.currentTimeMillis() - timestamp;
-      root.lag.update(lag);
-      updateNodeMinMax(value, root);
+  public void accept(String input, @Nullable String host,
+                     @Nullable String metric, long timestamp, double value,
+                     boolean accessed, boolean spyOnPoint) {
+    accept(input, hash(host), hash(metric), timestamp, value, accessed, spyOnPoint);
+  }
+
+  /**
+   * @param hostHash   See {@link SpyPoint#getHostHash()}.
+   * @param metricHash See {@link SpyPoint#getMetricHash()}.
+   * @param spyOnPoint When spy on ID (spyOnPoint == false), there is no access, lag, or range information.
+   */
+  public void accept(String input, long hostHash, long metricHash, long timestamp, double value,
+                     boolean accessed, boolean spyOnPoint) {
+    long lag = spyOnPoint ? System.currentTimeMillis() - timestamp : 0;
+    acceptWithLag(input, hostHash, metricHash, lag, value, accessed, spyOnPoint);
+  }
+
+  /**
+   * Same as above with the lag of the point already computed, for points that were queued before
+   * being applied (which must not add to their lag).
+   */
+  void acceptWithLag(String input, long hostHash, long metricHash, long lag, double value,
+                     boolean accessed, boolean spyOnPoint) {
+    PathCache.Entry path = path(input);
+    NamespaceNode[] nodes = path.nodes;
+    NamespaceNode deepest = nodes[nodes.length - 1];
+    if (deepest.rollUp) {
+      // only the deepest node reached is updated, its ancestors roll it up when read.
+      update(deepest, true, hostHash, metricHash, lag, value, accessed, spyOnPoint);
+      deepest.markDirty();
+    } else {
+      for (int i = 0; i < nodes.length; i++) {
+        // the last node does not track cardinality.
+        boolean cardinality = !path.trailing || i < nodes.length - 1;
+        update(nodes[i], cardinality, hostHash, metricHash, lag, value, accessed, spyOnPoint);
+      }
     }
+  }
+
+  /**
+   * Apply points coalesced for input with a single walk, as if they had been accepted one by one.
+   */
+  void accept(String input, CoalescedPoints points) {
+    PathCache.Entry path = path(input);
+    NamespaceNode[] nodes = path.nodes;
+    NamespaceNode deepest = nodes[nodes.length - 1];
+    if (deepest.rollUp) {
+      update(deepest, true, points);
+      deepest.markDirty();
+    } else {
+      for (int i = 0; i < nodes.length; i++) {
+        update(nodes[i], !path.trailing || i < nodes.length - 1, points);
+      }
+    }
+  }
+
+  /**
+   * @return Nodes input resolves to, from the cache when still usable.
+   */
+  private PathCache.Entry path(String input) {
+    // the generation is read before the configuration, a path resolved with a configuration that
+    // changed in the meantime is cached under a stale generation and never used.
+    final int generation = this.generation.get();
+    final int branchLimit = this.branchLimit;
+    PathCache.Entry path = pathCache.get(input, generation);
+    if (path == null || !isUsable(path, branchLimit)) {
+      path = resolve(input, generation);
+      pathCache.put(path);
+    }
+    return path;
+  }
+
+  /**
+   * Walk (and grow) the tree for input.
+   *
+   * @return Nodes from the root down to the deepest one reached.
+   */
+  private PathCache.Entry resolve(String input, int generation) {
+    // read the configuration once so that a concurrent change applies to whole points only.
+    final String separators = this.separators;
+    final int depthLimit = this.depthLimit;
+    final int branchLimit = this.branchLimit;
+    final boolean expand = !expansionPaused;
+    final NamespaceNode root = this.root;
+    int topLevel = topLevelDepth;
+    NamespaceNode[] nodes = new NamespaceNode[Math.max(depthLimit, 0) + 2];
+    int length = 0;
+    nodes[length++] = root;
     NamespaceNode curr = root;
     StringBuilder sb = new StringBuilder();
     int depth = 0;
@@ -64,21 +220,19 @@ public class NamespaceBuilder {
       sb.append(c);
       if (separator) {
         String soFar = sb.toString();
-        Map<String, NamespaceNode> lookupTable = curr.nodes;
-        if (lookupTable.size() == branchLimit || curr.limited) {
+        if (curr.limited || curr.children.size() >= branchLimit) {
           curr.limited = true;
           bail = true;
           break;
         }
-        NamespaceNode node = lookupTable.computeIfAbsent(soFar, NamespaceNode::new);
-        node.rate.mark();
-        updateCardinality(node, metric, host, longPair);
-        if (spyOnPoint) {
-          if (accessed) node.accessed++;
-          node.lag.update(lag);
-          updateNodeMinMax(value, node);
+        NamespaceNode next = getOrCreate(curr, soFar, expand);
+        if (next == null) {
+          bail = true;
+          break;
         }
-        curr = node;
+        curr = next;
+        if (length == nodes.length - 1) nodes = Arrays.copyOf(nodes, length * 2);
+        nodes[length++] = curr;
         sb.setLength(0);
         depth++;
         if (depth == depthLimit) {
@@ -88,22 +242,197 @@ public class NamespaceBuilder {
       }
     }
     // might have another node at the end.
-    if (!bail && sb.length() > 0) {
-      String soFar = sb.toString();
-      Map<String, NamespaceNode> lookupTable = curr.nodes;
-      NamespaceNode node = lookupTable.computeIfAbsent(soFar, NamespaceNode::new);
-      node.rate.mark();
-      if (spyOnPoint) {
-        if (accessed) node.accessed++;
-        node.lag.update(lag);
-        updateNodeMinMax(value, node);
+    NamespaceNode last = bail || sb.length() == 0 ? null :
+        getOrCreate(curr, sb.toString(), expand);
+    boolean trailing = last != null;
+    if (trailing) {
+      nodes[length++] = last;
+    }
+    return new PathCache.Entry(input, generation, Arrays.copyOf(nodes, length), trailing);
+  }
+
+  /**
+   * A cached path stays valid as long as none of the nodes it descends from has reached the branch
+   * limit since (a full node stops points, even those for its existing children).
+   */
+  private static boolean isUsable(PathCache.Entry path, int branchLimit) {
+    NamespaceNode[] nodes = path.nodes;
+    // descending into the trailing node does not check the branch limit.
+    int checked = path.trailing ? nodes.length - 2 : nodes.length - 1;
+    for (int i = 0; i < checked; i++) {
+      if (nodes[i].limited || nodes[i].children.size() >= branchLimit) return false;
+    }
+    return true;
+  }
+
+  private void update(NamespaceNode node, boolean cardinality, long hostHash, long metricHash,
+                      long lag, double value, boolean accessed, boolean spyOnPoint) {
+    node.stats.add(cardinality, hostHash, metricHash, spyOnPoint, lag, accessed, value);
+    if (spyOnPoint) {
+      if (accessed) node.counters.addAccessed(1);
+      node.counters.updateRange(value);
+    }
+  }
+
+  private void update(NamespaceNode node, boolean cardinality, CoalescedPoints points) {
+    node.stats.add(cardinality, points);
+    if (points.spied > 0) {
+      node.counters.addAccessed(points.accessed);
+      node.counters.updateRange(points.min);
+      node.counters.updateRange(points.max);
+    }
+  }
+
+  /**
+   * @param create Whether to create the child if there is none yet.
+   * @return Child of parent for key, null if there is none and create is false.
+   */
+  @Nullable
+  private static NamespaceNode getOrCreate(NamespaceNode parent, String key, boolean create) {
+    return create ? parent.getOrCreateChild(key) : parent.getChild(key);
+  }
+
+  /**
+   * @return End (exclusive) of the top-level namespace of input, i.e. the key of the root's child
+   * that input would be placed under.
+   */
+  int getTopLevelEnd(CharSequence input) {
+    final String separators = this.separators;
+    int topLevel = topLevelDepth;
+    for (int i = 0; i < input.length(); i++) {
+      if (separators.indexOf(input.charAt(i)) >= 0 && --topLevel <= 0) {
+        return i + 1;
       }
     }
+    return input.length();
   }
 
+  /**
+   * Evict the namespaces whose whole subtree has not seen points for ttlMillis (see
+   * {@link NamespaceNode#evict}), which also makes room under namespaces that had reached the branch
+   * limit.
+   *
+   * @return Number of namespaces evicted directly (not counting their descendants).
+   */
+  public int evictIdle(long ttlMillis) {
+    return evictIdleSince(System.currentTimeMillis() - ttlMillis);
+  }
+
+  /**
+   * @param idleSince Evict subtrees that have not seen points since then.
+   */
   @VisibleForTesting
+  int evictIdleSince(long idleSince) {
+    final int branchLimit = this.branchLimit;
+    int[] evicted = new int[1];
+    boolean[] unlimited = new boolean[1];
+    sweep(root, idleSince, branchLimit, evicted, unlimited);
+    // cached paths might lead to evicted nodes or stop at a node that is no longer limited.
+    if (evicted[0] > 0 || unlimited[0]) generation.incrementAndGet();
+    return evicted[0];
+  }
+
+  /**
+   * Evict the idle children of node, unless node itself is idle and about to be evicted with its
+   * whole subtree by its parent.
+   *
+   * @return When the subtree of node last saw points.
+   */
+  private static long sweep(NamespaceNode node, long idleSince, int branchLimit, int[] evicted,
+                            boolean[] unlimited) {
+    long updated = node.stats.lastUpdated();
+    Set<NamespaceNode> idle = null;
+    for (NamespaceNode child : node.children.toArray()) {
+      long childUpdated = sweep(child, idleSince, branchLimit, evicted, unlimited);
+      if (childUpdated < idleSince) {
+        if (idle == null) idle = new HashSet<>();
+        idle.add(child);
+      } else {
+        updated = Math.max(updated, childUpdated);
+      }
+    }
+    if (updated < idleSince && node.parent != null) return updated;
+    if (idle != null) {
+      node.evict(idle);
+      evicted[0] += idle.size();
+    }
+    if (node.limited && node.children.size() < branchLimit) {
+      node.limited = false;
+      unlimited[0] = true;
+    }
+    return updated;
+  }
+
+  /**
+   * Estimate the memory held by each namespace's subtree (see {@link NamespaceNode#subtreeBytes}).
+   *
+   * @return Estimated bytes of the whole tree.
+   */
+  public long accountMemory() {
+    return account(root);
+  }
+
+  private static long account(NamespaceNode node) {
+    long bytes = node.estimatedBytes();
+    for (NamespaceNode child : node.children.toArray()) {
+      bytes += account(child);
+    }
+    node.subtreeBytes = bytes;
+    return bytes;
+  }
+
+  /**
+   * Coarsen the tree to free memory: evict the children of the namespaces whose subtree sees the
+   * fewest points (over the last minute) for the memory it holds, until about fraction of the
+   * tree's bytes have been freed. Sizes are those of the last {@link #accountMemory}.
+   *
+   * @return Estimated bytes freed.
+   */
+  public long coarsen(double fraction) {
+    NamespaceNode root = this.root;
+    long target = (long) (root.subtreeBytes * fraction);
+    List<Candidate> candidates = new ArrayList<>();
+    for (NamespaceNode child : root.children.toArray()) {
+      collectCandidates(child, candidates);
+    }
+    // then the biggest first, e.g. when nothing has a rate yet.
+    candidates.sort(Comparator.<Candidate>comparingDouble(candidate -> candidate.value).
+        thenComparing(candidate -> -candidate.freed));
+    Set<NamespaceNode> coarsened = new HashSet<>();
+    long freed = 0;
+    for (Candidate candidate : candidates) {
+      if (freed >= target) break;
+      if (hasAncestorIn(candidate.node, coarsened)) continue;
+      candidate.node.evict(new HashSet<>(Arrays.asList(candidate.node.children.toArray())));
+      coarsened.add(candidate.node);
+      freed += candidate.freed;
+    }
+    if (!coarsened.isEmpty()) generation.incrementAndGet();
+    return freed;
+  }
+
+  private static void collectCandidates(NamespaceNode node, List<Candidate> candidates) {
+    NamespaceNode[] children = node.children.toArray();
+    if (children.length == 0) return;
+    long freed = node.subtreeBytes - node.estimatedBytes();
+    if (freed > 0) {
+      candidates.add(new Candidate(node, freed, node.getRate().getOneMinuteRate() / freed));
+    }
+    for (NamespaceNode child : children) {
+      collectCandidates(child, candidates);
+    }
+  }
+
+  private static boolean hasAncestorIn(NamespaceNode node, Set<NamespaceNode> nodes) {
+    for (NamespaceNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+      if (nodes.contains(ancestor)) return true;
+    }
+    return false;
+  }
+
   public void reset() {
-    this.root = new NamespaceNode("");
+    this.root = new NamespaceNode("", rollUp, log2m, regwidth, offHeap ? new NodeSlab() : null);
+    generation.incrementAndGet();
   }
 
   @VisibleForTesting
@@ -116,38 +445,49 @@ public class NamespaceBuilder {
     return branchLimit;
   }
 
-  private void updateNodeMinMax(double value, NamespaceNode node) {
-    while (true) {
-      double min = node.min.get();
-      if (min <= value) break;
-      if (node.min.compareAndSet(min, value)) break;
-    }
-    while (true) {
-      double max = node.max.get();
-      if (max >= value) break;
-      if (node.max.compareAndSet(max, value)) break;
-    }
-  }
-
   public void setMaxDepth(int maxDepth) {
     this.depthLimit = maxDepth;
+    generation.incrementAndGet();
   }
 
   public void setMaxChildren(int maxChildren) {
     this.branchLimit = maxChildren;
+    generation.incrementAndGet();
   }
 
   public void setTopLevelDepth(int topLevelDepth) {
     this.topLevelDepth = topLevelDepth;
+    generation.incrementAndGet();
+  }
+
+  /**
+   * @return Same hash as {@link SpyPoint#getHostHash()} and {@link SpyPoint#getMetricHash()}, i.e. half
+   * of a point's fingerprint (hashed once per point and reused at every level of every tree).
+   */
+  static long hash(String s) {
+    MurmurHash3.LongPair longPair = new MurmurHash3.LongPair();
+    MurmurHash3.murmurhash3_x64_128(s, 0, s.length(), 0, longPair);
+    return longPair.val1;
   }
 
-  private void updateCardinality(NamespaceNode node, String metric, String host,
-                                 MurmurHash3.LongPair reuse) {
-    byte[] hostBytes = host.getBytes();
-    MurmurHash3.murmurhash3_x64_128(hostBytes, 0, hostBytes.length, 0, reuse);
-    node.hostCardinality.addRaw(reuse.val1);
-    byte[] metricBytes = metric.getBytes();
-    MurmurHash3.murmurhash3_x64_128(metricBytes, 0, metricBytes.length, 0, reuse);
-    node.metricCardinality.addRaw(reuse.val1);
+  /**
+   * A namespace whose children could be evicted to free memory.
+   */
+  private static final class Candidate {
+    private final NamespaceNode node;
+    /**
+     * Estimated bytes held by the children's subtrees.
+     */
+    private final long freed;
+    /**
+     * Points per second per byte freed, the lower the better to coarsen.
+     */
+    private final double value;
+
+    private Candidate(NamespaceNode node, long freed, double value) {
+      this.node = node;
+      this.freed = freed;
+      this.value = value;
+    }
   }
 }
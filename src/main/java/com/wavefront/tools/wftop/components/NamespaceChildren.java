@@ -0,0 +1,231 @@
+package com.wavefront.tools.wftop.components;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Children of a {@link NamespaceNode}, keyed by segment id (see {@link SegmentDictionary}) in a
+ * container that grows with them: none, a single child, a small sorted array and finally an
+ * open-addressing table. Most nodes are leaves or have a handful of children, so they never pay for
+ * a hash map.
+ * <p>
+ * Lookups are lock-free. Adding a child is serialized by the parent: the smaller containers are
+ * immutable and replaced by a bigger one, the table is filled in place (each slot is published
+ * atomically) until it has to grow. Children are only removed by replacing the whole container
+ * (see {@link #of}), also under the parent's lock.
+ */
+abstract class NamespaceChildren {
+
+  static final NamespaceChildren EMPTY = new Empty();
+  /**
+   * Children kept in a sorted array at most, a table beyond that.
+   */
+  private static final int SORTED_MAX = 8;
+
+  /**
+   * @return Container holding children (e.g. those left once others have been evicted), not shared
+   * with any other node yet.
+   */
+  static NamespaceChildren of(NamespaceNode[] children) {
+    NamespaceChildren container = EMPTY;
+    for (NamespaceNode child : children) {
+      container = container.with(child);
+    }
+    return container;
+  }
+
+  abstract int size();
+
+  @Nullable
+  abstract NamespaceNode get(int segment);
+
+  /**
+   * @param child Child whose segment is not in the container yet, caller holds the parent's lock.
+   * @return Container with child added, either this one or a bigger one replacing it.
+   */
+  abstract NamespaceChildren with(NamespaceNode child);
+
+  /**
+   * @return Snapshot of the children.
+   */
+  abstract NamespaceNode[] toArray();
+
+  /**
+   * @return The only child, null unless there is exactly one.
+   */
+  @Nullable
+  NamespaceNode only() {
+    return null;
+  }
+
+  private static final class Empty extends NamespaceChildren {
+    @Override
+    int size() {
+      return 0;
+    }
+
+    @Nullable
+    @Override
+    NamespaceNode get(int segment) {
+      return null;
+    }
+
+    @Override
+    NamespaceChildren with(NamespaceNode child) {
+      return new Single(child);
+    }
+
+    @Override
+    NamespaceNode[] toArray() {
+      return new NamespaceNode[0];
+    }
+  }
+
+  private static final class Single extends NamespaceChildren {
+    private final NamespaceNode child;
+
+    private Single(NamespaceNode child) {
+      this.child = child;
+    }
+
+    @Override
+    int size() {
+      return 1;
+    }
+
+    @Nullable
+    @Override
+    NamespaceNode get(int segment) {
+      return child.segment == segment ? child : null;
+    }
+
+    @Override
+    NamespaceChildren with(NamespaceNode child) {
+      return new Sorted(new NamespaceNode[]{this.child}).with(child);
+    }
+
+    @Override
+    NamespaceNode[] toArray() {
+      return new NamespaceNode[]{child};
+    }
+
+    @Override
+    NamespaceNode only() {
+      return child;
+    }
+  }
+
+  private static final class Sorted extends NamespaceChildren {
+    private final int[] segments;
+    private final NamespaceNode[] children;
+
+    /**
+     * @param children Children sorted by segment.
+     */
+    private Sorted(NamespaceNode[] children) {
+      this.children = children;
+      this.segments = new int[children.length];
+      for (int i = 0; i < children.length; i++) {
+        segments[i] = children[i].segment;
+      }
+    }
+
+    @Override
+    int size() {
+      return children.length;
+    }
+
+    @Nullable
+    @Override
+    NamespaceNode get(int segment) {
+      int i = Arrays.binarySearch(segments, segment);
+      return i < 0 ? null : children[i];
+    }
+
+    @Override
+    NamespaceChildren with(NamespaceNode child) {
+      if (children.length == SORTED_MAX) {
+        return new Table(SORTED_MAX * 4, children).with(child);
+      }
+      int insertAt = -Arrays.binarySearch(segments, child.segment) - 1;
+      NamespaceNode[] grown = new NamespaceNode[children.length + 1];
+      System.arraycopy(children, 0, grown, 0, insertAt);
+      grown[insertAt] = child;
+      System.arraycopy(children, insertAt, grown, insertAt + 1, children.length - insertAt);
+      return new Sorted(grown);
+    }
+
+    @Override
+    NamespaceNode[] toArray() {
+      return children.clone();
+    }
+  }
+
+  private static final class Table extends NamespaceChildren {
+    private final AtomicReferenceArray<NamespaceNode> slots;
+    private final int mask;
+    private volatile int size = 0;
+
+    /**
+     * @param capacity Power of two, more than children.
+     */
+    private Table(int capacity, NamespaceNode[] children) {
+      this.slots = new AtomicReferenceArray<>(capacity);
+      this.mask = capacity - 1;
+      for (NamespaceNode child : children) {
+        insert(child);
+      }
+    }
+
+    @Override
+    int size() {
+      return size;
+    }
+
+    @Nullable
+    @Override
+    NamespaceNode get(int segment) {
+      for (int i = slot(segment); ; i = (i + 1) & mask) {
+        NamespaceNode child = slots.get(i);
+        if (child == null || child.segment == segment) return child;
+      }
+    }
+
+    @Override
+    NamespaceChildren with(NamespaceNode child) {
+      // keep the load factor under 3/4.
+      if ((size + 1) * 4 > slots.length() * 3) {
+        return new Table(slots.length() * 2, toArray()).with(child);
+      }
+      insert(child);
+      return this;
+    }
+
+    private void insert(NamespaceNode child) {
+      int i = slot(child.segment);
+      while (slots.get(i) != null) {
+        i = (i + 1) & mask;
+      }
+      slots.set(i, child);
+      size++;
+    }
+
+    private int slot(int segment) {
+      // ids are sequential, spread them so that runs don't cluster.
+      int h = segment * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    @Override
+    NamespaceNode[] toArray() {
+      NamespaceNode[] children = new NamespaceNode[size];
+      int n = 0;
+      for (int i = 0; i < slots.length() && n < children.length; i++) {
+        NamespaceNode child = slots.get(i);
+        if (child != null) children[n++] = child;
+      }
+      return n == children.length ? children : Arrays.copyOf(children, n);
+    }
+  }
+}
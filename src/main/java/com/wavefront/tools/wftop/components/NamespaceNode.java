@@ -1,31 +1,111 @@
 package com.wavefront.tools.wftop.components;
 
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.util.concurrent.AtomicDouble;
 import io.dropwizard.metrics5.Histogram;
-import io.dropwizard.metrics5.Meter;
-import io.dropwizard.metrics5.UniformReservoir;
+import io.dropwizard.metrics5.Metered;
 import net.agkn.hll.HLL;
 
+import javax.annotation.Nullable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 
+/**
+ * A namespace in the tree. Safe to update from several ingest threads and to read from the render
+ * thread concurrently: see {@link NodeCounters} and {@link NodeStats} for how statistics are kept,
+ * children are looked up lock-free (see {@link NamespaceChildren}). In off-heap mode, the tree's
+ * counters and sketches live in a {@link NodeSlab} shared by all its nodes.
+ * <p>
+ * In roll-up mode, ingest only updates the deepest node a point reaches (so the fields below are
+ * that node's own statistics) and flags the path up to the root as dirty. Getters then return the
+ * node's statistics merged with its whole subtree, computed when read and cached for a short while;
+ * sketches are only merged again for subtrees that have seen points since.
+ * <p>
+ * Children that have been idle for long can be evicted (see {@link #evict}). Their points were
+ * already counted by this node unless in roll-up mode, where their subtree's totals are folded into
+ * this node instead.
+ */
 public class NamespaceNode implements Node<NamespaceNode> {
 
-  final Map<String, NamespaceNode> nodes = new ConcurrentHashMap<>();
-  private final String value;
-  final Histogram lag = new Histogram(new UniformReservoir());
-  final Meter rate = new Meter();
-  final HLL hostCardinality = new HLL(13, 5);
-  final HLL metricCardinality = new HLL(13, 5);
-  int accessed = 0;
-  boolean limited = false;
+  private static final long CACHE_MILLIS = 500;
 
-  final AtomicDouble min = new AtomicDouble(Double.MAX_VALUE);
-  final AtomicDouble max = new AtomicDouble(-Double.MAX_VALUE);
+  /**
+   * Segments of the tree, shared by all its nodes.
+   */
+  final SegmentDictionary dictionary;
+  /**
+   * Id of {@link #value} in the dictionary.
+   */
+  final int segment;
+  private final String value;
+  volatile NamespaceChildren children = NamespaceChildren.EMPTY;
+  private volatile Flattened flattened = null;
+  @Nullable
+  final NamespaceNode parent;
+  final boolean rollUp;
+  volatile boolean dirty = false;
+  private volatile RolledUp rolledUp = null;
+  /**
+   * Count, rates, lag and cardinality, cheap until the node gets busy or shown.
+   */
+  final NodeStats stats;
+  /**
+   * Accessed count and value range.
+   */
+  final NodeCounters counters;
+  volatile boolean limited = false;
+  /**
+   * Totals of evicted subtrees in roll-up mode, null if none.
+   */
+  @Nullable
+  private volatile Folded folded = null;
+  /**
+   * Estimated bytes of the node and its subtree, as of the last accounting (see
+   * {@link NamespaceBuilder#accountMemory}).
+   */
+  volatile long subtreeBytes = 0;
 
   NamespaceNode(String value) {
-    this.value = value;
+    this(value, null, false);
+  }
+
+  /**
+   * @param parent Parent node, null for a root.
+   * @param rollUp Whether the tree is in roll-up mode (see above).
+   */
+  NamespaceNode(String value, @Nullable NamespaceNode parent, boolean rollUp) {
+    this(value, parent, rollUp, parent == null ?
+        new NodeStats(true, NodeStats.DEFAULT_LOG2M, NodeStats.DEFAULT_REGWIDTH) :
+        parent.stats.child(rollUp));
+  }
+
+  /**
+   * Root whose cardinality sketches have the given parameters, deeper namespaces derive theirs from
+   * them (see {@link NodeStats#child}).
+   *
+   * @param slab Where the tree keeps counters and sketches, null for the heap.
+   */
+  NamespaceNode(String value, boolean rollUp, int log2m, int regwidth, @Nullable NodeSlab slab) {
+    this(value, null, rollUp, new NodeStats(true, log2m, regwidth, slab));
+  }
+
+  private NamespaceNode(String value, @Nullable NamespaceNode parent, boolean rollUp,
+                        NodeStats stats) {
+    this.dictionary = parent == null ? new SegmentDictionary() : parent.dictionary;
+    SegmentDictionary.Segment segment = dictionary.acquire(value);
+    this.value = segment.value;
+    this.segment = segment.id;
+    this.parent = parent;
+    this.rollUp = rollUp;
+    this.stats = stats;
+    this.counters = NodeCounters.create(stats.slab);
   }
 
   @Override
@@ -33,37 +113,63 @@ public class NamespaceNode implements Node<NamespaceNode> {
     return value;
   }
 
+  /**
+   * @return Value of this node followed by those of the chain of single children below it. Cached
+   * until the chain changes, since the UI asks for it on every row and comparison.
+   */
   @Override
   public String getFlattened() {
-    if (nodes.size() == 1) {
-      return value + Iterables.getOnlyElement(nodes.values()).getFlattened();
-    }
-    return value;
+    NamespaceNode only = children.only();
+    if (only == null) return value;
+    // the child returns the same instance for as long as its own label is unchanged.
+    String tail = only.getFlattened();
+    Flattened cached = flattened;
+    if (cached != null && cached.tail == tail) return cached.label;
+    cached = new Flattened(tail, value + tail);
+    flattened = cached;
+    return cached.label;
   }
 
   @Override
   public long getEstimatedHostCardinality() {
-    return hostCardinality.cardinality();
+    return rollUp ? rolledUp().hostCardinality : stats.getHostCardinality();
   }
 
   @Override
   public long getEstimatedMetricCardinality() {
-    return metricCardinality.cardinality();
+    return rollUp ? rolledUp().metricCardinality : stats.getMetricCardinality();
   }
 
   @Override
   public Histogram getLag() {
-    return lag;
+    return rollUp ? rolledUp().lag : stats.getLag();
   }
 
   @Override
   public int getAccessed() {
-    return accessed;
+    return rollUp ? rolledUp().accessed : (int) counters.getAccessed();
+  }
+
+  @Override
+  public void markVisible() {
+    // rolled up nodes read their statistics from the subtree, cold or not.
+    if (!rollUp) stats.promote();
+  }
+
+  @Override
+  public Metered getRate() {
+    return rollUp ? rolledUp().rate : stats.getRate();
   }
 
   @Override
-  public Meter getRate() {
-    return rate;
+  public RecentStats getRecentStats(int minutes) {
+    int index = RecentStats.index(minutes);
+    return rollUp ? rolledUp().recent[index] : stats.getRecentStats(minutes);
+  }
+
+  @Override
+  public long getEstimatedBytes() {
+    return subtreeBytes;
   }
 
   @Override
@@ -73,21 +179,392 @@ public class NamespaceNode implements Node<NamespaceNode> {
 
   @Override
   public AtomicDouble getMin() {
-    return min;
+    return new AtomicDouble(rollUp ? rolledUp().min : counters.getMin());
   }
 
   @Override
   public AtomicDouble getMax() {
-    return max;
+    return new AtomicDouble(rollUp ? rolledUp().max : counters.getMax());
   }
 
   @Override
   public double getRange() {
-    return max.get() - min.get();
+    if (rollUp) {
+      RolledUp rolledUp = rolledUp();
+      return rolledUp.max - rolledUp.min;
+    }
+    return counters.getMax() - counters.getMin();
   }
 
+  /**
+   * @return Read-only view of the children, keyed by their segment.
+   */
   @Override
   public Map<String, NamespaceNode> getNodes() {
-    return nodes;
+    return new ChildrenView();
+  }
+
+  /**
+   * @return Child for value, created if there is none yet (by this thread or a concurrent one).
+   */
+  NamespaceNode getOrCreateChild(String value) {
+    NamespaceNode child = getChild(value);
+    if (child != null) return child;
+    synchronized (this) {
+      // the segment may have been dropped and added again since, under another id.
+      child = getChild(value);
+      if (child == null) {
+        child = new NamespaceNode(value, this, rollUp);
+        children = children.with(child);
+      }
+      return child;
+    }
+  }
+
+  /**
+   * @return Child for value, null if there is none.
+   */
+  @Nullable
+  NamespaceNode getChild(String value) {
+    SegmentDictionary.Segment segment = dictionary.lookup(value);
+    return segment == null ? null : children.get(segment.id);
+  }
+
+  /**
+   * @return Rough size of the node itself in bytes: the object, its statistics and its children
+   * container.
+   */
+  long estimatedBytes() {
+    Folded folded = this.folded;
+    return 64 + 16 + children.size() * 12L + counters.estimatedBytes() + stats.estimatedBytes() +
+        (folded == null ? 0 : 64 + folded.lag.estimatedBytes());
+  }
+
+  /**
+   * Drop children, along with their subtree. Points racing with the eviction of the namespace they
+   * resolved to are lost, so only children that have been idle for long should be evicted.
+   *
+   * @param evicted Children to evict.
+   */
+  void evict(Set<NamespaceNode> evicted) {
+    List<NamespaceNode> removed = new ArrayList<>();
+    synchronized (this) {
+      List<NamespaceNode> kept = new ArrayList<>();
+      for (NamespaceNode child : children.toArray()) {
+        if (!evicted.contains(child)) {
+          kept.add(child);
+          continue;
+        }
+        removed.add(child);
+        if (rollUp) folded = Folded.plus(folded, child.rolledUp(System.currentTimeMillis(), true));
+      }
+      children = NamespaceChildren.of(kept.toArray(new NamespaceNode[0]));
+    }
+    for (NamespaceNode child : removed) {
+      child.release();
+    }
+    // ancestors must roll up again, without the evicted subtrees' sketches.
+    if (rollUp) markDirty();
+  }
+
+  /**
+   * Give back what the subtree holds in the tree's dictionary and slab, once it is out of the tree.
+   * Points still on their way to it (e.g. through a cached path) are then ignored by its off-heap
+   * statistics, rather than landing in records handed out again.
+   */
+  private void release() {
+    for (NamespaceNode child : children.toArray()) {
+      child.release();
+    }
+    counters.release();
+    stats.release();
+    dictionary.release(value, segment);
+  }
+
+  /**
+   * @return Host sketch of the node, merged with the subtree's in roll-up mode.
+   */
+  HLL hostSketch() {
+    return rollUp ? rolledUp().hosts : stats.hostSketch();
+  }
+
+  /**
+   * @return Metric sketch of the node, merged with the subtree's in roll-up mode.
+   */
+  HLL metricSketch() {
+    return rollUp ? rolledUp().metrics : stats.metricSketch();
+  }
+
+  /**
+   * Flag this node and its ancestors as having new points (after the point has been applied, so
+   * that a concurrent roll-up either sees the point or sees the flag).
+   */
+  void markDirty() {
+    for (NamespaceNode node = this; node != null; node = node.parent) {
+      if (!node.dirty) node.dirty = true;
+    }
+  }
+
+  private RolledUp rolledUp() {
+    return rolledUp(System.currentTimeMillis(), false);
+  }
+
+  /**
+   * @param fresh Whether the parent is rolling up new points, in which case a dirty subtree must be
+   *              merged again even if its cached roll-up is recent.
+   */
+  private RolledUp rolledUp(long now, boolean fresh) {
+    RolledUp current = rolledUp;
+    if (current != null && now - current.computedAt <= CACHE_MILLIS && !(fresh && dirty)) {
+      return current;
+    }
+    synchronized (this) {
+      current = rolledUp;
+      if (current != null && now - current.computedAt <= CACHE_MILLIS && !(fresh && dirty)) {
+        return current;
+      }
+      // clear first, points applied while we merge flag the node again.
+      boolean changed = current == null || dirty;
+      dirty = false;
+      NamespaceNode[] nodes = this.children.toArray();
+      List<RolledUp> children = new ArrayList<>(nodes.length);
+      for (NamespaceNode child : nodes) {
+        children.add(child.rolledUp(now, changed));
+      }
+      current = new RolledUp(this, children, changed ? null : current, now);
+      rolledUp = current;
+      return current;
+    }
+  }
+
+  private final class ChildrenView extends AbstractMap<String, NamespaceNode> {
+    @Override
+    public NamespaceNode get(Object key) {
+      return key instanceof String ? getChild((String) key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+      return children.size();
+    }
+
+    @Override
+    public Set<Entry<String, NamespaceNode>> entrySet() {
+      NamespaceNode[] nodes = children.toArray();
+      return new AbstractSet<Entry<String, NamespaceNode>>() {
+        @Override
+        public Iterator<Entry<String, NamespaceNode>> iterator() {
+          return Iterators.transform(Iterators.forArray(nodes),
+              node -> new SimpleImmutableEntry<>(node.getValue(), node));
+        }
+
+        @Override
+        public int size() {
+          return nodes.length;
+        }
+      };
+    }
+  }
+
+  private static final class Flattened {
+    private final String tail;
+    private final String label;
+
+    private Flattened(String tail, String label) {
+      this.tail = tail;
+      this.label = label;
+    }
+  }
+
+  /**
+   * Totals of evicted subtrees. Cardinality and recent statistics are not kept: they only cover the
+   * last few minutes, which an idle subtree has no points in.
+   */
+  private static final class Folded {
+    private final long count;
+    private final long sum;
+    private final int accessed;
+    private final double min;
+    private final double max;
+    private final LagHistogram lag;
+
+    private Folded(long count, long sum, int accessed, double min, double max, LagHistogram lag) {
+      this.count = count;
+      this.sum = sum;
+      this.accessed = accessed;
+      this.min = min;
+      this.max = max;
+      this.lag = lag;
+    }
+
+    /**
+     * @param folded  Totals so far, null if none.
+     * @param subtree Roll-up of a subtree to fold in.
+     */
+    private static Folded plus(@Nullable Folded folded, RolledUp subtree) {
+      if (folded == null) {
+        return new Folded(subtree.rate.getCount(), subtree.rate.getSum(), subtree.accessed,
+            subtree.min, subtree.max, LagHistogram.merge(Collections.singletonList(subtree.lag)));
+      }
+      return new Folded(folded.count + subtree.rate.getCount(),
+          folded.sum + subtree.rate.getSum(), folded.accessed + subtree.accessed,
+          Math.min(folded.min, subtree.min), Math.max(folded.max, subtree.max),
+          LagHistogram.merge(Arrays.asList(folded.lag, subtree.lag)));
+    }
+  }
+
+  /**
+   * Statistics of a node merged with its subtree.
+   */
+  private static final class RolledUp {
+    private final long computedAt;
+    private final Metered rate;
+    private final RecentStats[] recent;
+    private final HLL hosts;
+    private final HLL metrics;
+    private final long hostCardinality;
+    private final long metricCardinality;
+    private final Histogram lag;
+    private final int accessed;
+    private final double min;
+    private final double max;
+
+    /**
+     * @param previous Previous roll-up to reuse everything but rates from (rates decay with time),
+     *                 null if the subtree has seen points since.
+     */
+    private RolledUp(NamespaceNode node, List<RolledUp> children, @Nullable RolledUp previous,
+                     long computedAt) {
+      this.computedAt = computedAt;
+      Metered[] rates = new Metered[children.size()];
+      for (int i = 0; i < rates.length; i++) {
+        rates[i] = children.get(i).rate;
+      }
+      Metered own = node.stats.getRate();
+      Folded folded = node.folded;
+      this.rate = new RolledUpRate(own, folded, rates);
+      // like rates, recent statistics change with time alone.
+      this.recent = new RecentStats[RecentStats.MINUTES.length];
+      for (int i = 0; i < recent.length; i++) {
+        RecentStats recent = node.stats.getRecentStats(RecentStats.MINUTES[i]);
+        for (RolledUp child : children) {
+          recent = recent.plus(child.recent[i]);
+        }
+        this.recent[i] = recent;
+      }
+      if (previous != null) {
+        this.hosts = previous.hosts;
+        this.metrics = previous.metrics;
+        this.hostCardinality = previous.hostCardinality;
+        this.metricCardinality = previous.metricCardinality;
+        this.lag = previous.lag;
+        this.accessed = previous.accessed;
+        this.min = previous.min;
+        this.max = previous.max;
+        return;
+      }
+      HLL hosts = MergedNode.union(null, node.stats.hostSketch());
+      HLL metrics = MergedNode.union(null, node.stats.metricSketch());
+      List<Histogram> lags = new ArrayList<>(children.size() + 1);
+      lags.add(node.stats.getLag());
+      int accessed = (int) node.counters.getAccessed();
+      double min = node.counters.getMin(), max = node.counters.getMax();
+      if (folded != null) {
+        lags.add(folded.lag);
+        accessed += folded.accessed;
+        min = Math.min(min, folded.min);
+        max = Math.max(max, folded.max);
+      }
+      for (RolledUp child : children) {
+        MergedNode.union(hosts, child.hosts);
+        MergedNode.union(metrics, child.metrics);
+        lags.add(child.lag);
+        accessed += child.accessed;
+        min = Math.min(min, child.min);
+        max = Math.max(max, child.max);
+      }
+      this.hosts = hosts;
+      this.metrics = metrics;
+      this.hostCardinality = hosts.cardinality();
+      this.metricCardinality = metrics.cardinality();
+      this.lag = LagHistogram.merge(lags);
+      this.accessed = accessed;
+      this.min = min;
+      this.max = max;
+    }
+  }
+
+  /**
+   * Rates of a node and its subtree, summed when rolled up.
+   */
+  private static final class RolledUpRate implements Metered {
+    private final long count;
+    private final long sum;
+    private final double meanRate;
+    private final double oneMinuteRate;
+    private final double fiveMinuteRate;
+    private final double fifteenMinuteRate;
+
+    /**
+     * @param folded Totals of evicted subtrees, whose rates have decayed to nothing, null if none.
+     */
+    private RolledUpRate(Metered own, @Nullable Folded folded, Metered[] children) {
+      long count = own.getCount(), sum = own.getSum();
+      if (folded != null) {
+        count += folded.count;
+        sum += folded.sum;
+      }
+      double meanRate = own.getMeanRate(), oneMinuteRate = own.getOneMinuteRate(),
+          fiveMinuteRate = own.getFiveMinuteRate(), fifteenMinuteRate = own.getFifteenMinuteRate();
+      for (Metered child : children) {
+        count += child.getCount();
+        sum += child.getSum();
+        meanRate += child.getMeanRate();
+        oneMinuteRate += child.getOneMinuteRate();
+        fiveMinuteRate += child.getFiveMinuteRate();
+        fifteenMinuteRate += child.getFifteenMinuteRate();
+      }
+      this.count = count;
+      this.sum = sum;
+      this.meanRate = meanRate;
+      this.oneMinuteRate = oneMinuteRate;
+      this.fiveMinuteRate = fiveMinuteRate;
+      this.fifteenMinuteRate = fifteenMinuteRate;
+    }
+
+    @Override
+    public long getCount() {
+      return count;
+    }
+
+    @Override
+    public long getSum() {
+      return sum;
+    }
+
+    @Override
+    public double getMeanRate() {
+      return meanRate;
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+      return oneMinuteRate;
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+      return fiveMinuteRate;
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+      return fifteenMinuteRate;
+    }
   }
 }
@@ -2,7 +2,7 @@ package com.wavefront.tools.wftop.components;
 
 import com.google.common.util.concurrent.AtomicDouble;
 import io.dropwizard.metrics5.Histogram;
-import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.Metered;
 
 import java.util.Map;
 
@@ -54,7 +54,7 @@ public interface Node<T extends Node> {
    *
    * @return Sampling rate.
    */
-  Meter getRate();
+  Metered getRate();
 
   /**
    * Branch limit of node is the maximum children per node.
@@ -79,6 +79,27 @@ public interface Node<T extends Node> {
    */
   double getRange();
 
+  /**
+   * Unlike the other counters, which accumulate over the whole session, recent statistics only
+   * describe the last few minutes of traffic.
+   *
+   * @param minutes Window, one of {@link RecentStats#MINUTES}.
+   * @return Points, accessed points and range of values over the window.
+   */
+  RecentStats getRecentStats(int minutes);
+
+  /**
+   * @return Estimated memory held by the node and everything below it, in bytes, as of the last
+   * time the trees were accounted for (0 if they never were).
+   */
+  long getEstimatedBytes();
+
+  /**
+   * The node is about to be shown: keep full statistics for it from now on, however little traffic
+   * it sees. Listing children (see {@link #getNodes}) leaves them as they are.
+   */
+  void markVisible();
+
   /**
    * @return Map of current Node's children nodes.
    */
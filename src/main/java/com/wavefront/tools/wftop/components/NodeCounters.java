@@ -0,0 +1,166 @@
+package com.wavefront.tools.wftop.components;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accessed count and value range of a {@link NamespaceNode}, kept on the heap (striped and
+ * CAS-updated) or in the tree's {@link NodeSlab} (guarded by the counters' own monitor).
+ */
+abstract class NodeCounters {
+
+  /**
+   * @param slab Slab of the tree, null to keep the counters on the heap.
+   */
+  static NodeCounters create(@Nullable NodeSlab slab) {
+    return slab == null ? new Heap() : new Slab(slab);
+  }
+
+  abstract void addAccessed(long n);
+
+  abstract long getAccessed();
+
+  /**
+   * Widen the range to include value.
+   */
+  abstract void updateRange(double value);
+
+  abstract double getMin();
+
+  abstract double getMax();
+
+  /**
+   * Give back slab storage, after which updates are ignored and reads return nothing seen. Nothing
+   * to do on the heap.
+   */
+  void release() {
+  }
+
+  /**
+   * @return Rough size of the counters in bytes, heap or slab.
+   */
+  abstract long estimatedBytes();
+
+  private static final class Heap extends NodeCounters {
+    private static final AtomicLongFieldUpdater<Heap> MIN =
+        AtomicLongFieldUpdater.newUpdater(Heap.class, "min");
+    private static final AtomicLongFieldUpdater<Heap> MAX =
+        AtomicLongFieldUpdater.newUpdater(Heap.class, "max");
+
+    private final LongAdder accessed = new LongAdder();
+    // raw bits of doubles.
+    private volatile long min = Double.doubleToRawLongBits(Double.MAX_VALUE);
+    private volatile long max = Double.doubleToRawLongBits(-Double.MAX_VALUE);
+
+    @Override
+    void addAccessed(long n) {
+      accessed.add(n);
+    }
+
+    @Override
+    long getAccessed() {
+      return accessed.sum();
+    }
+
+    @Override
+    void updateRange(double value) {
+      long bits = Double.doubleToRawLongBits(value);
+      while (true) {
+        long min = this.min;
+        if (Double.longBitsToDouble(min) <= value) break;
+        if (MIN.compareAndSet(this, min, bits)) break;
+      }
+      while (true) {
+        long max = this.max;
+        if (Double.longBitsToDouble(max) >= value) break;
+        if (MAX.compareAndSet(this, max, bits)) break;
+      }
+    }
+
+    @Override
+    double getMin() {
+      return Double.longBitsToDouble(min);
+    }
+
+    @Override
+    double getMax() {
+      return Double.longBitsToDouble(max);
+    }
+
+    @Override
+    long estimatedBytes() {
+      // the object and its accessed adder (unless contended).
+      return 32 + 48;
+    }
+  }
+
+  private static final class Slab extends NodeCounters {
+    private static final int ACCESSED = 0;
+    private static final int MIN = 8;
+    private static final int MAX = 16;
+    private static final int BYTES = 24;
+
+    private final NodeSlab slab;
+    private final long address;
+    // guarded by this.
+    private boolean released = false;
+
+    private Slab(NodeSlab slab) {
+      this.slab = slab;
+      this.address = slab.allocate(BYTES);
+      ByteBuffer buffer = slab.chunk(address);
+      int offset = NodeSlab.offset(address);
+      buffer.putDouble(offset + MIN, Double.MAX_VALUE);
+      buffer.putDouble(offset + MAX, -Double.MAX_VALUE);
+    }
+
+    @Override
+    synchronized void release() {
+      if (released) return;
+      released = true;
+      slab.free(address, BYTES);
+    }
+
+    @Override
+    synchronized void addAccessed(long n) {
+      if (released) return;
+      int offset = NodeSlab.offset(address) + ACCESSED;
+      ByteBuffer buffer = slab.chunk(address);
+      buffer.putLong(offset, buffer.getLong(offset) + n);
+    }
+
+    @Override
+    synchronized long getAccessed() {
+      if (released) return 0;
+      return slab.chunk(address).getLong(NodeSlab.offset(address) + ACCESSED);
+    }
+
+    @Override
+    synchronized void updateRange(double value) {
+      if (released) return;
+      ByteBuffer buffer = slab.chunk(address);
+      int offset = NodeSlab.offset(address);
+      if (buffer.getDouble(offset + MIN) > value) buffer.putDouble(offset + MIN, value);
+      if (buffer.getDouble(offset + MAX) < value) buffer.putDouble(offset + MAX, value);
+    }
+
+    @Override
+    synchronized double getMin() {
+      if (released) return Double.MAX_VALUE;
+      return slab.chunk(address).getDouble(NodeSlab.offset(address) + MIN);
+    }
+
+    @Override
+    synchronized double getMax() {
+      if (released) return -Double.MAX_VALUE;
+      return slab.chunk(address).getDouble(NodeSlab.offset(address) + MAX);
+    }
+
+    @Override
+    long estimatedBytes() {
+      return 32 + BYTES;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.wavefront.tools.wftop.components;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Off-heap storage for the statistics of one namespace tree (see {@link NodeCounters} and
+ * {@link CardinalitySketch}), so that large trees don't keep millions of primitive arrays for the
+ * garbage collector to mark. Fixed-size records are bump-allocated in direct buffers that double in
+ * size up to {@link #MAX_CHUNK_BYTES}, and are addressed by a long (chunk index in the high bits,
+ * offset in the low bits).
+ * <p>
+ * Records of evicted nodes are {@link #free freed} to a free list per record size, and handed out
+ * again before the slab grows. Chunks themselves only go away with the whole slab, with its tree on
+ * reset (direct buffers are released once unreachable). Owners serialize access to their records
+ * themselves, and must not touch them once freed.
+ */
+final class NodeSlab {
+
+  private static final int MIN_CHUNK_BYTES = 1 << 16;
+  private static final int MAX_CHUNK_BYTES = 1 << 24;
+
+  private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+  // guarded by this.
+  private int current = -1;
+  private int position = 0;
+  private long allocated = 0;
+  // addresses of freed records by size.
+  private final Map<Integer, ArrayDeque<Long>> free = new HashMap<>();
+
+  /**
+   * @return Address of a new zeroed record of the given size.
+   */
+  synchronized long allocate(int bytes) {
+    allocated += bytes;
+    ArrayDeque<Long> freed = free.get(bytes);
+    if (freed != null && !freed.isEmpty()) {
+      long address = freed.pop();
+      ByteBuffer buffer = chunk(address);
+      int offset = offset(address);
+      for (int i = 0; i < bytes; i++) {
+        buffer.put(offset + i, (byte) 0);
+      }
+      return address;
+    }
+    if (bytes > MAX_CHUNK_BYTES) {
+      // oversized sketches get a chunk of their own, the current one keeps filling up.
+      return address(addChunk(bytes), 0);
+    }
+    if (current < 0 || position + bytes > chunks[current].capacity()) {
+      int size = current < 0 ? MIN_CHUNK_BYTES :
+          Math.min(MAX_CHUNK_BYTES, chunks[current].capacity() * 2);
+      current = addChunk(Math.max(size, bytes));
+      position = 0;
+    }
+    long address = address(current, position);
+    position += bytes;
+    return address;
+  }
+
+  /**
+   * Take back a record from {@link #allocate}, to be handed out again.
+   *
+   * @param bytes Size the record was allocated with.
+   */
+  synchronized void free(long address, int bytes) {
+    allocated -= bytes;
+    free.computeIfAbsent(bytes, k -> new ArrayDeque<>()).push(address);
+  }
+
+  /**
+   * @return Bytes in records handed out and not freed.
+   */
+  synchronized long getAllocatedBytes() {
+    return allocated;
+  }
+
+  /**
+   * @return Buffer holding the record at address, to be read and written at {@link #offset}.
+   */
+  ByteBuffer chunk(long address) {
+    return chunks[(int) (address >>> 32)];
+  }
+
+  static int offset(long address) {
+    return (int) address;
+  }
+
+  private static long address(int chunk, int offset) {
+    return ((long) chunk << 32) | offset;
+  }
+
+  private int addChunk(int bytes) {
+    ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+    grown[chunks.length] = ByteBuffer.allocateDirect(bytes);
+    chunks = grown;
+    return grown.length - 1;
+  }
+}
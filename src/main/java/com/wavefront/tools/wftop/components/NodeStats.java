@@ -0,0 +1,503 @@
+package com.wavefront.tools.wftop.components;
+
+import io.dropwizard.metrics5.Histogram;
+import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.Metered;
+import net.agkn.hll.HLL;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Point count, rates, lag and cardinality of a {@link NamespaceNode}, in two tiers. A node starts
+ * cold: it only keeps a count plus the lag samples and distinct fingerprints of the few points it
+ * has seen, which is all it takes to answer exactly. It is promoted to full statistics (a meter,
+ * per-minute counters, a windowed lag sketch and two sliding HLL sketches, KBs together) once it has
+ * seen {@link #PROMOTE_AFTER} points or is listed in the UI. Most namespaces of a large tree are
+ * long-tail ones that never get there.
+ * <p>
+ * Cold statistics are guarded by their own monitor, promotion happens under it and publishes the
+ * full statistics before dropping the cold ones. The sketches of full statistics live either on the
+ * heap or in the tree's {@link NodeSlab}.
+ */
+final class NodeStats {
+
+  static final int PROMOTE_AFTER = 16;
+  static final int DEFAULT_LOG2M = 13;
+  static final int DEFAULT_REGWIDTH = 5;
+  /**
+   * Precision at which sketches of deeper namespaces stop losing a bit per level.
+   */
+  static final int MIN_LOG2M = 10;
+  private static final long[] NONE = new long[0];
+
+  /**
+   * Parameters of the {@link HLL} sketches.
+   */
+  final byte log2m;
+  final byte regwidth;
+  /**
+   * Where full statistics keep their sketches, null for the heap.
+   */
+  @Nullable
+  final NodeSlab slab;
+  @Nullable
+  private volatile Hot hot;
+  @Nullable
+  private volatile Cold cold;
+
+  NodeStats(boolean hot, int log2m, int regwidth) {
+    this(hot, log2m, regwidth, null);
+  }
+
+  /**
+   * @param hot  Whether to start with full statistics (for roots, which are always shown).
+   * @param slab Slab of the tree to keep sketches in, null for the heap.
+   */
+  NodeStats(boolean hot, int log2m, int regwidth, @Nullable NodeSlab slab) {
+    if (log2m < HLL.MINIMUM_LOG2M_PARAM || log2m > HLL.MAXIMUM_LOG2M_PARAM) {
+      throw new IllegalArgumentException("Sketch log2m must be between " + HLL.MINIMUM_LOG2M_PARAM +
+          " and " + HLL.MAXIMUM_LOG2M_PARAM);
+    }
+    if (regwidth < HLL.MINIMUM_REGWIDTH_PARAM || regwidth > HLL.MAXIMUM_REGWIDTH_PARAM) {
+      throw new IllegalArgumentException("Sketch regwidth must be between " +
+          HLL.MINIMUM_REGWIDTH_PARAM + " and " + HLL.MAXIMUM_REGWIDTH_PARAM);
+    }
+    this.log2m = (byte) log2m;
+    this.regwidth = (byte) regwidth;
+    this.slab = slab;
+    if (hot) {
+      this.hot = new Hot(this);
+    } else {
+      this.cold = new Cold();
+    }
+  }
+
+  /**
+   * @param rollUp Whether the tree is in roll-up mode, where sketches are unioned across depths
+   *               and must therefore all have the same parameters.
+   * @return Statistics for a child namespace, whose sketches are a bit less precise than ours
+   * (deep namespaces rarely see as many distinct values, and there are many more of them).
+   */
+  NodeStats child(boolean rollUp) {
+    int childLog2m = rollUp ? log2m : Math.max(Math.min(log2m, MIN_LOG2M), log2m - 1);
+    return new NodeStats(false, childLog2m, regwidth, slab);
+  }
+
+  boolean isHot() {
+    return hot != null;
+  }
+
+  /**
+   * @param spied    Whether the point was spied on, only then are lag, accessed and value set.
+   * @param accessed Whether the point was found to be accessed.
+   */
+  void add(boolean cardinality, long hostHash, long metricHash, boolean spied, long lag,
+           boolean accessed, double value) {
+    Hot hot = this.hot;
+    if (hot == null) {
+      Cold cold = this.cold;
+      if (cold != null) {
+        synchronized (cold) {
+          if (!cold.promoted) {
+            if (cold.released) return;
+            if (cold.count + 1 < PROMOTE_AFTER) {
+              cold.add(cardinality, hostHash, metricHash, spied, lag, accessed, value);
+              return;
+            }
+            hot = promote(cold);
+          }
+        }
+      }
+      if (hot == null) hot = this.hot;
+    }
+    hot.rate.mark();
+    if (spied) {
+      hot.recent.add(1, accessed ? 1 : 0, value, value);
+    } else {
+      hot.recent.add(1, 0, Double.MAX_VALUE, -Double.MAX_VALUE);
+    }
+    if (cardinality) {
+      hot.hosts.addRaw(hostHash);
+      hot.metrics.addRaw(metricHash);
+    }
+    if (spied) hot.lag.update(lag);
+  }
+
+  void add(boolean cardinality, CoalescedPoints points) {
+    Hot hot = this.hot;
+    if (hot == null) {
+      Cold cold = this.cold;
+      if (cold != null) {
+        synchronized (cold) {
+          if (!cold.promoted) {
+            if (cold.released) return;
+            if (cold.count + points.count < PROMOTE_AFTER) {
+              cold.add(cardinality, points);
+              return;
+            }
+            hot = promote(cold);
+          }
+        }
+      }
+      if (hot == null) hot = this.hot;
+    }
+    hot.rate.mark(points.count);
+    hot.recent.add(points.count, points.accessed, points.min, points.max);
+    if (cardinality) {
+      hot.hosts.addRaw(points.hostHashes.values, points.hostHashes.size);
+      hot.metrics.addRaw(points.metricHashes.values, points.metricHashes.size);
+    }
+    for (int i = 0; i < points.spied; i++) {
+      hot.lag.update(points.lags[i]);
+    }
+  }
+
+  /**
+   * Switch to full statistics now, regardless of traffic.
+   */
+  void promote() {
+    Cold cold = this.cold;
+    if (cold == null) return;
+    synchronized (cold) {
+      if (!cold.promoted && !cold.released) promote(cold);
+    }
+  }
+
+  /**
+   * Give back the sketches' slab storage once the node is evicted (see
+   * {@link CardinalitySketch#release}). Sketches ignore values from then on, and a cold node ignores
+   * points rather than being promoted to sketches nobody would release.
+   */
+  void release() {
+    Cold cold = this.cold;
+    if (cold != null) {
+      synchronized (cold) {
+        if (!cold.promoted) {
+          cold.released = true;
+          return;
+        }
+      }
+    }
+    Hot hot = this.hot;
+    hot.hosts.release();
+    hot.metrics.release();
+  }
+
+  /**
+   * Caller holds the monitor of cold.
+   */
+  private Hot promote(Cold cold) {
+    Hot hot = new Hot(this);
+    if (cold.count > 0) {
+      hot.rate.mark(cold.count);
+      hot.recent.add(cold.count, cold.accessed, cold.min, cold.max);
+    }
+    for (int i = 0; i < cold.lagCount; i++) {
+      hot.lag.update(cold.lags[i]);
+    }
+    hot.hosts.addRaw(cold.hosts, cold.hostCount);
+    hot.metrics.addRaw(cold.metrics, cold.metricCount);
+    this.hot = hot;
+    cold.promoted = true;
+    this.cold = null;
+    return hot;
+  }
+
+  /**
+   * @return Live meter when hot, an estimate when cold (see {@link ColdRate}).
+   */
+  Metered getRate() {
+    Hot hot = this.hot;
+    if (hot != null) return hot.rate;
+    Cold cold = this.cold;
+    if (cold != null) {
+      synchronized (cold) {
+        if (!cold.promoted) return new ColdRate(cold.count, cold.created);
+      }
+    }
+    return this.hot.rate;
+  }
+
+  /**
+   * @param minutes One of {@link RecentStats#MINUTES}.
+   * @return Points, accessed points and range over the last minutes. Points seen while cold count
+   * as seen when the node was last updated.
+   */
+  RecentStats getRecentStats(int minutes) {
+    Hot hot = this.hot;
+    if (hot == null) {
+      Cold cold = this.cold;
+      if (cold != null) {
+        synchronized (cold) {
+          if (!cold.promoted) {
+            if (cold.count == 0 ||
+                System.currentTimeMillis() - cold.updated >= minutes * RecentCounters.INTERVAL_MILLIS) {
+              return RecentStats.EMPTY;
+            }
+            return new RecentStats(cold.count, cold.accessed, cold.min, cold.max);
+          }
+        }
+      }
+      hot = this.hot;
+    }
+    return hot.recent.get(minutes);
+  }
+
+  /**
+   * @return When the node last saw points (to the minute once hot), or was created or promoted if
+   * later.
+   */
+  long lastUpdated() {
+    Hot hot = this.hot;
+    if (hot == null) {
+      Cold cold = this.cold;
+      if (cold != null) {
+        synchronized (cold) {
+          if (!cold.promoted) return cold.updated;
+        }
+      }
+      hot = this.hot;
+    }
+    return Math.max(hot.created, hot.recent.lastUpdated());
+  }
+
+  /**
+   * @return Rough size of the statistics in bytes, sketches included wherever they live.
+   */
+  long estimatedBytes() {
+    Hot hot = this.hot;
+    if (hot == null) {
+      Cold cold = this.cold;
+      if (cold != null) {
+        synchronized (cold) {
+          if (!cold.promoted) {
+            return 32 + 96 + 8 * (cold.lags.length + cold.hosts.length + cold.metrics.length);
+          }
+        }
+      }
+      hot = this.hot;
+    }
+    return 32 + 32 + Hot.METER_BYTES + RecentCounters.BYTES + hot.lag.estimatedBytes() +
+        hot.hosts.estimatedBytes() + hot.metrics.estimatedBytes();
+  }
+
+  /**
+   * @return Live histogram when hot, a copy of the samples when cold.
+   */
+  Histogram getLag() {
+    Hot hot = this.hot;
+    if (hot != null) return hot.lag;
+    Cold cold = this.cold;
+    if (cold != null) {
+      synchronized (cold) {
+        if (!cold.promoted) {
+          Histogram lag = new LagHistogram();
+          for (int i = 0; i < cold.lagCount; i++) {
+            lag.update(cold.lags[i]);
+          }
+          return lag;
+        }
+      }
+    }
+    return this.hot.lag;
+  }
+
+  long getHostCardinality() {
+    return cardinality(true);
+  }
+
+  long getMetricCardinality() {
+    return cardinality(false);
+  }
+
+  private long cardinality(boolean hosts) {
+    Hot hot = this.hot;
+    if (hot == null) {
+      Cold cold = this.cold;
+      if (cold != null) {
+        synchronized (cold) {
+          if (!cold.promoted) return hosts ? cold.hostCount : cold.metricCount;
+        }
+      }
+      hot = this.hot;
+    }
+    return hosts ? hot.hosts.cardinality() : hot.metrics.cardinality();
+  }
+
+  /**
+   * @return Host sketch to union or clone, see {@link CardinalitySketch#toHLL}; a new one when cold.
+   */
+  HLL hostSketch() {
+    return sketch(true);
+  }
+
+  /**
+   * @return Metric sketch to union or clone, see {@link CardinalitySketch#toHLL}; a new one when
+   * cold.
+   */
+  HLL metricSketch() {
+    return sketch(false);
+  }
+
+  private HLL sketch(boolean hosts) {
+    Hot hot = this.hot;
+    if (hot == null) {
+      Cold cold = this.cold;
+      if (cold != null) {
+        synchronized (cold) {
+          if (!cold.promoted) {
+            HLL hll = new HLL(log2m, regwidth);
+            long[] hashes = hosts ? cold.hosts : cold.metrics;
+            int count = hosts ? cold.hostCount : cold.metricCount;
+            for (int i = 0; i < count; i++) {
+              hll.addRaw(hashes[i]);
+            }
+            return hll;
+          }
+        }
+      }
+      hot = this.hot;
+    }
+    return hosts ? hot.hosts.toHLL() : hot.metrics.toHLL();
+  }
+
+  private static final class Hot {
+    /**
+     * Rough size of a meter: its adders and moving averages.
+     */
+    private static final long METER_BYTES = 400;
+
+    private final long created = System.currentTimeMillis();
+    private final Meter rate = new Meter();
+    private final LagHistogram lag = new LagHistogram();
+    private final RecentCounters recent = new RecentCounters();
+    private final SlidingSketch hosts;
+    private final SlidingSketch metrics;
+
+    private Hot(NodeStats stats) {
+      this.hosts = new SlidingSketch(stats.slab, stats.log2m, stats.regwidth);
+      this.metrics = new SlidingSketch(stats.slab, stats.log2m, stats.regwidth);
+    }
+  }
+
+  private static final class Cold {
+    private final long created = System.currentTimeMillis();
+    private long updated = created;
+    private int count = 0;
+    private int accessed = 0;
+    private double min = Double.MAX_VALUE;
+    private double max = -Double.MAX_VALUE;
+    private long[] lags = NONE;
+    private int lagCount = 0;
+    private long[] hosts = NONE;
+    private int hostCount = 0;
+    private long[] metrics = NONE;
+    private int metricCount = 0;
+    private boolean promoted = false;
+    private boolean released = false;
+
+    private void add(boolean cardinality, long hostHash, long metricHash, boolean spied, long lag,
+                     boolean accessed, double value) {
+      count++;
+      updated = System.currentTimeMillis();
+      if (cardinality) {
+        addHost(hostHash);
+        addMetric(metricHash);
+      }
+      if (spied) {
+        if (lagCount == lags.length) lags = grow(lags);
+        lags[lagCount++] = lag;
+        if (accessed) this.accessed++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+    }
+
+    private void add(boolean cardinality, CoalescedPoints points) {
+      count += points.count;
+      updated = System.currentTimeMillis();
+      accessed += points.accessed;
+      min = Math.min(min, points.min);
+      max = Math.max(max, points.max);
+      if (cardinality) {
+        for (int i = 0; i < points.hostHashes.size; i++) {
+          addHost(points.hostHashes.values[i]);
+        }
+        for (int i = 0; i < points.metricHashes.size; i++) {
+          addMetric(points.metricHashes.values[i]);
+        }
+      }
+      for (int i = 0; i < points.spied; i++) {
+        if (lagCount == lags.length) lags = grow(lags);
+        lags[lagCount++] = points.lags[i];
+      }
+    }
+
+    private void addHost(long hash) {
+      for (int i = 0; i < hostCount; i++) {
+        if (hosts[i] == hash) return;
+      }
+      if (hostCount == hosts.length) hosts = grow(hosts);
+      hosts[hostCount++] = hash;
+    }
+
+    private void addMetric(long hash) {
+      for (int i = 0; i < metricCount; i++) {
+        if (metrics[i] == hash) return;
+      }
+      if (metricCount == metrics.length) metrics = grow(metrics);
+      metrics[metricCount++] = hash;
+    }
+
+    private static long[] grow(long[] array) {
+      return Arrays.copyOf(array, Math.min(PROMOTE_AFTER, Math.max(2, array.length * 2)));
+    }
+  }
+
+  /**
+   * Rates of a cold node, which only knows how many points it has seen since it was created. Points
+   * are assumed to be spread evenly over that time, each moving-average rate is estimated over at
+   * least its own window.
+   */
+  private static final class ColdRate implements Metered {
+    private final long count;
+    private final double seconds;
+
+    private ColdRate(long count, long created) {
+      this.count = count;
+      this.seconds = Math.max(1, System.currentTimeMillis() - created) / 1000.0;
+    }
+
+    @Override
+    public long getCount() {
+      return count;
+    }
+
+    @Override
+    public long getSum() {
+      // nothing is ever marked with a value.
+      return 0;
+    }
+
+    @Override
+    public double getMeanRate() {
+      return count / seconds;
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+      return count / Math.max(seconds, 60);
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+      return count / Math.max(seconds, 300);
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+      return count / Math.max(seconds, 900);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.wavefront.tools.wftop.components;
+
+import javax.annotation.Nullable;
+
+/**
+ * Bounded, direct-mapped cache from the input of a {@link NamespaceBuilder} to the chain of nodes
+ * it resolved to, so that repeated series skip tokenization and child lookups. A miss simply
+ * replaces whatever was in the slot. Entries are immutable and tagged with the generation of the
+ * builder's configuration they were resolved with, so concurrent readers and writers need no
+ * locking and a configuration change invalidates everything at once.
+ */
+class PathCache {
+
+  private final Entry[] entries;
+  private final int mask;
+
+  /**
+   * @param size Number of slots, a power of two.
+   */
+  PathCache(int size) {
+    if (size < 1 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Cache size must be a power of two");
+    }
+    this.entries = new Entry[size];
+    this.mask = size - 1;
+  }
+
+  @Nullable
+  Entry get(String input, int generation) {
+    Entry entry = entries[slot(input)];
+    if (entry == null || entry.generation != generation || !entry.input.equals(input)) return null;
+    return entry;
+  }
+
+  void put(Entry entry) {
+    entries[slot(entry.input)] = entry;
+  }
+
+  private int slot(String input) {
+    // String caches its hash code, repeated (interned) names don't even rehash.
+    int h = input.hashCode();
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  static final class Entry {
+    final String input;
+    final int generation;
+    /**
+     * Nodes from the root down to the deepest one reached.
+     */
+    final NamespaceNode[] nodes;
+    /**
+     * Whether the deepest node is the trailing segment of the input (which does not track
+     * cardinality and is not subject to the branch limit).
+     */
+    final boolean trailing;
+
+    Entry(String input, int generation, NamespaceNode[] nodes, boolean trailing) {
+      this.input = input;
+      this.generation = generation;
+      this.nodes = nodes;
+      this.trailing = trailing;
+    }
+  }
+}
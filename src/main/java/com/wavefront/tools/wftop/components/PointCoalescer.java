@@ -0,0 +1,126 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Micro-batches points before they are applied to the trees. Within a short window, the points of a
+ * source that resolve to the same namespace input are folded into one {@link CoalescedPoints}, which
+ * is then applied with a single tree walk (so tree lookups and contention on the nodes' statistics
+ * drop by how often inputs repeat within the window). Each ingest thread fills its own buffer and
+ * applies it once the window has elapsed; a daemon thread flushes the buffers of threads that have
+ * gone quiet.
+ */
+class PointCoalescer {
+
+  private static final Logger log = Logger.getLogger(PointCoalescer.class.getCanonicalName());
+
+  private final long windowMillis;
+  private final List<Buffer> buffers = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<Buffer> buffer = ThreadLocal.withInitial(() -> {
+    Buffer buffer = new Buffer();
+    buffers.add(buffer);
+    return buffer;
+  });
+  private final Thread flusher;
+  private volatile boolean running = true;
+
+  PointCoalescer(long windowMillis) {
+    if (windowMillis < 1) {
+      throw new IllegalArgumentException("Cannot coalesce points over a window < 1ms");
+    }
+    this.windowMillis = windowMillis;
+    this.flusher = new Thread(this::work, "wftop-coalescer");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  long getWindowMillis() {
+    return windowMillis;
+  }
+
+  void add(SourceNode source, String input, long hostHash, long metricHash, long timestamp,
+           double value, boolean accessed, boolean spyOnPoint) {
+    Buffer buffer = this.buffer.get();
+    long now = System.currentTimeMillis();
+    long lag = spyOnPoint ? now - timestamp : 0;
+    Map<SourceNode, Map<String, CoalescedPoints>> drained = null;
+    synchronized (buffer) {
+      if (buffer.pending.isEmpty()) buffer.started = now;
+      buffer.pending.computeIfAbsent(source, k -> new HashMap<>()).
+          computeIfAbsent(input, k -> new CoalescedPoints()).
+          add(hostHash, metricHash, lag, value, accessed, spyOnPoint);
+      if (now - buffer.started >= windowMillis) drained = buffer.drain();
+    }
+    if (drained != null) apply(drained);
+  }
+
+  /**
+   * Apply everything buffered so far, regardless of the window.
+   */
+  void flush() {
+    for (Buffer buffer : buffers) {
+      Map<SourceNode, Map<String, CoalescedPoints>> drained;
+      synchronized (buffer) {
+        drained = buffer.drain();
+      }
+      apply(drained);
+    }
+  }
+
+  void shutdown() {
+    running = false;
+    flusher.interrupt();
+  }
+
+  private void work() {
+    while (running) {
+      try {
+        Thread.sleep(windowMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      for (Buffer buffer : buffers) {
+        Map<SourceNode, Map<String, CoalescedPoints>> drained = null;
+        synchronized (buffer) {
+          if (!buffer.pending.isEmpty() && now - buffer.started >= windowMillis) {
+            drained = buffer.drain();
+          }
+        }
+        if (drained != null) apply(drained);
+      }
+    }
+  }
+
+  private static void apply(Map<SourceNode, Map<String, CoalescedPoints>> drained) {
+    for (Map.Entry<SourceNode, Map<String, CoalescedPoints>> source : drained.entrySet()) {
+      for (Map.Entry<String, CoalescedPoints> entry : source.getValue().entrySet()) {
+        try {
+          source.getKey().apply(entry.getKey(), entry.getValue());
+        } catch (Exception ex) {
+          log.log(Level.WARNING, "Failed to apply points: " + entry.getKey(), ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Points coalesced by one ingest thread since {@link #started}, guarded by its own monitor (only
+   * contended when the flusher thread drains it).
+   */
+  private static class Buffer {
+    private Map<SourceNode, Map<String, CoalescedPoints>> pending = new HashMap<>();
+    private long started;
+
+    private Map<SourceNode, Map<String, CoalescedPoints>> drain() {
+      Map<SourceNode, Map<String, CoalescedPoints>> drained = pending;
+      pending = new HashMap<>();
+      return drained;
+    }
+  }
+}
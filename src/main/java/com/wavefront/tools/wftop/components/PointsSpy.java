@@ -3,12 +3,8 @@ package com.wavefront.tools.wftop.components;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
-import com.wavefront.ingester.SpyApiMetricDecoder;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.config.RequestConfig;
@@ -19,16 +15,16 @@ import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.nio.IOControl;
-import org.apache.http.nio.client.methods.AsyncCharConsumer;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
 import org.apache.http.nio.client.methods.HttpAsyncMethods;
 import org.apache.http.protocol.HttpContext;
-import wavefront.report.Annotation;
-import wavefront.report.ReportMetric;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.nio.CharBuffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -47,10 +43,9 @@ public class PointsSpy {
 
   private static final Logger log = Logger.getLogger(PointsSpy.class.getCanonicalName());
 
-  /**
-   * Ingestion has a weird format that's not like our ingestion unfortunately.
-   */
-  private static final SpyApiMetricDecoder decoder = new SpyApiMetricDecoder();
+  private static final byte[] BACKENDS_PREFIX = "# backends: ".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] UNACCESSED_PREFIX = "[UNACCESSED] ".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] ACCESSED_PREFIX = "[ACCESSED]   ".getBytes(StandardCharsets.UTF_8);
 
   private final AtomicBoolean connected = new AtomicBoolean(false);
 
@@ -91,9 +86,19 @@ public class PointsSpy {
    * Determine what to Spy on.
    */
   private boolean spyOnPoint = true;
+  /**
+   * Number of lines that can be queued between the connection and the consumer threads.
+   */
+  private int ingestBufferSize = 16384;
+  /**
+   * Number of threads decoding lines and updating listeners.
+   */
+  private int ingestThreads = 1;
 
   private Listener listener;
-  private StringBuilder curr = new StringBuilder();
+  private byte[] curr = new byte[1024];
+  private int currLength = 0;
+  private volatile IngestPipeline pipeline;
 
   public PointsSpy() {
     this.httpAsyncClient = HttpAsyncClients.custom().
@@ -119,6 +124,26 @@ public class PointsSpy {
     this.usageDaysThreshold = threshold;
   }
 
+  /**
+   * Configure the ingest pipeline, takes effect on the next {@link #start()}.
+   *
+   * @param bufferSize Number of lines that can be queued before lines are dropped.
+   * @param threads    Number of consumer threads.
+   */
+  public void setIngestPipeline(int bufferSize, int threads) {
+    if (bufferSize < 1 || threads < 1) {
+      throw new IllegalArgumentException("Cannot set ingest buffer size or threads to < 1");
+    }
+    synchronized (this) {
+      this.ingestBufferSize = bufferSize;
+      this.ingestThreads = threads;
+      if (pipeline != null) {
+        pipeline.shutdown();
+        pipeline = null;
+      }
+    }
+  }
+
   public void setParameters(String clusterUrl, String token,
                             @Nullable String typePrefix, @Nullable String namePrefix,
                             double samplingRate) {
@@ -200,6 +225,27 @@ public class PointsSpy {
     return samplingRate;
   }
 
+  /**
+   * @return Number of lines received but not yet processed.
+   */
+  public int getQueueDepth() {
+    IngestPipeline pipeline = this.pipeline;
+    return pipeline == null ? 0 : pipeline.getQueueDepth();
+  }
+
+  public int getQueueCapacity() {
+    IngestPipeline pipeline = this.pipeline;
+    return pipeline == null ? ingestBufferSize : pipeline.getCapacity();
+  }
+
+  /**
+   * @return Number of lines dropped because consumers could not keep up.
+   */
+  public long getDroppedLines() {
+    IngestPipeline pipeline = this.pipeline;
+    return pipeline == null ? 0 : pipeline.getDropped();
+  }
+
   /**
    * Start the spying stream (will invoke listeners). Stops the current stream if one is already
    * in-flight (there will only ever be one stream of points coming in from one connection.
@@ -207,6 +253,13 @@ public class PointsSpy {
   public void start() {
     synchronized (this) {
       stop();
+      if (pipeline == null) {
+        pipeline = new IngestPipeline(ingestBufferSize, ingestThreads, LineDecoder::new);
+      } else {
+        // lines queued for a previous request might have been made with different parameters.
+        pipeline.clear();
+      }
+      IngestPipeline pipeline = this.pipeline;
       if (this.listener != null) {
         this.listener.onConnecting(this);
       }
@@ -215,7 +268,7 @@ public class PointsSpy {
       log.log(Level.INFO, "Starting spy request: " + spyUrl);
       httpGet.setHeader("Authorization", "Bearer " + token);
       this.inflightCall = this.httpAsyncClient.execute(HttpAsyncMethods.create(httpGet),
-          new AsyncCharConsumer<Boolean>() {
+          new AsyncByteConsumer<Boolean>() {
 
             @Override
             protected void onResponseReceived(HttpResponse response) {
@@ -250,20 +303,18 @@ public class PointsSpy {
             }
 
             @Override
-            protected void onCharReceived(CharBuffer buf, IOControl ioctrl) throws IOException {
+            protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
               while (buf.hasRemaining()) {
-                char c = buf.get();
-                if (c == '\n' || c == '\r') {
-                  if (curr.length() != 0) {
-                    try {
-                      handleLine(curr.toString());
-                    } catch (Exception ex) {
-                      log.log(Level.WARNING, "Failed to process line: " + curr.toString(), ex);
-                    }
-                    curr.setLength(0);
+                byte b = buf.get();
+                if (b == '\n' || b == '\r') {
+                  if (currLength != 0) {
+                    // decoding happens on the pipeline threads, drops are counted there.
+                    pipeline.publish(curr, currLength);
+                    currLength = 0;
                   }
                 } else {
-                  curr.append(c);
+                  if (currLength == curr.length) curr = Arrays.copyOf(curr, curr.length * 2);
+                  curr[currLength++] = b;
                 }
               }
             }
@@ -343,37 +394,92 @@ public class PointsSpy {
     return connected.get();
   }
 
-  private void handleLine(String line) {
-    line = line.trim();
-    if (line.startsWith("# backends: ")) {
-      try {
-        int backends = Integer.parseInt(line.substring(12));
-        if (listener != null) {
-          this.listener.onBackendCountChanges(this, backends);
+  /**
+   * Decodes lines for one pipeline thread, reusing its parser for every line.
+   */
+  private class LineDecoder implements IngestPipeline.LineHandler {
+    private final SpyLineParser parser = new SpyLineParser();
+
+    @Override
+    public void onLine(byte[] line, int length) {
+      int start = 0, end = length;
+      // same as String#trim().
+      while (start < end && (line[start] & 0xff) <= ' ') start++;
+      while (end > start && (line[end - 1] & 0xff) <= ' ') end--;
+      if (startsWith(line, start, end, BACKENDS_PREFIX)) {
+        String backends = new String(line, start + BACKENDS_PREFIX.length,
+            end - start - BACKENDS_PREFIX.length, StandardCharsets.UTF_8);
+        try {
+          int numBackends = Integer.parseInt(backends);
+          if (listener != null) {
+            listener.onBackendCountChanges(PointsSpy.this, numBackends);
+          }
+        } catch (NumberFormatException ex) {
+          log.warning("Cannot parse backends line: " +
+              new String(line, start, end - start, StandardCharsets.UTF_8));
         }
-      } catch (NumberFormatException ex) {
-        log.warning("Cannot parse backends line: " + line);
+        return;
       }
-    }
-    if (spyOnPoint) {
-      if (line.startsWith("[UNACCESSED] ")) {
-        parseMetric(false, line.substring(13));
-      } else if (line.startsWith("[ACCESSED]   ")) {
-        parseMetric(true, line.substring(13));
-      } else {
-        // for old wavefront clusters, no usage information is returned.
-        try {
-          parseMetric(false, line);
-        } catch (Throwable t) {
-          // ignored.
+      if (start < end && line[start] == '#') return;
+      if (spyOnPoint) {
+        if (startsWith(line, start, end, UNACCESSED_PREFIX)) {
+          parseMetric(false, line, start + UNACCESSED_PREFIX.length, end);
+        } else if (startsWith(line, start, end, ACCESSED_PREFIX)) {
+          parseMetric(true, line, start + ACCESSED_PREFIX.length, end);
+        } else {
+          // for old wavefront clusters, no usage information is returned.
+          try {
+            parseMetric(false, line, start, end);
+          } catch (Throwable t) {
+            // best effort, lines that are not points are ignored.
+          }
         }
+      } else {
+        parseId(line, start, end);
+      }
+    }
+
+    /**
+     * @param accessed Access status of a point.
+     */
+    private void parseMetric(boolean accessed, byte[] line, int start, int end) {
+      parser.parse(line, start, end, accessed);
+      if (listener != null) {
+        listener.onPointReceived(PointsSpy.this, parser);
+      }
+    }
+
+    /**
+     * Each line is Type, Id name, Id number (whitespace separated).
+     */
+    private void parseId(byte[] line, int start, int end) {
+      int typeEnd = start;
+      while (typeEnd < end && (line[typeEnd] & 0xff) > ' ') typeEnd++;
+      String type = new String(line, start, typeEnd - start, StandardCharsets.UTF_8);
+      if (!isSpyableType(type)) return;
+      int nameStart = typeEnd;
+      while (nameStart < end && (line[nameStart] & 0xff) <= ' ') nameStart++;
+      int nameEnd = nameStart;
+      while (nameEnd < end && (line[nameEnd] & 0xff) > ' ') nameEnd++;
+      if (nameStart == nameEnd) {
+        log.warning("Cannot parse id line: " + new String(line, start, end - start, StandardCharsets.UTF_8));
+        return;
+      }
+      if (listener != null) {
+        listener.onIdReceived(PointsSpy.this, toType(type),
+            new String(line, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8));
       }
-    } else {
-      String[] IdLine = line.split("\\s+");
-      if (isSpyableType(IdLine[0])) parseId(IdLine);
     }
   }
 
+  private static boolean startsWith(byte[] line, int start, int end, byte[] prefix) {
+    if (end - start < prefix.length) return false;
+    for (int i = 0; i < prefix.length; i++) {
+      if (line[start + i] != prefix[i]) return false;
+    }
+    return true;
+  }
+
   private boolean isSpyableType(String type) {
     switch (type) {
       case "HOST":
@@ -403,39 +509,6 @@ public class PointsSpy {
     }
   }
 
-  /**
-   * @param line Each line is Type, Id name, Id number.
-   */
-  private void parseId(String[] line) {
-    Type IdType = toType(line[0]);
-    if (listener != null) {
-      this.listener.onIdReceived(this, IdType, line[1]);
-    }
-  }
-
-  /**
-   * @param accessed Access status of a point.
-   * @param line     Each point is listed on a separate line.
-   */
-  private void parseMetric(boolean accessed, String line) {
-    List<ReportMetric> out = Lists.newArrayList();
-    decoder.decode(line, out, null, null);
-    ReportMetric drive = out.get(0);
-    if (listener != null) {
-      Multimap<String, String> annotations;
-      if (drive.getAnnotations() != null) {
-        annotations = ArrayListMultimap.create(drive.getAnnotations().size(), 1);
-        for (Annotation annotation : drive.getAnnotations()) {
-          annotations.put(annotation.getKey(), annotation.getValue());
-        }
-      } else {
-        annotations = ImmutableMultimap.of();
-      }
-      this.listener.onMetricReceived(this, accessed, drive.getMetric(), drive.getHost(),
-          annotations, drive.getTimestamp(), (Double) drive.getValue());
-    }
-  }
-
   /**
    * Sets Spy Url Prefix Type.
    *
@@ -476,6 +549,17 @@ public class PointsSpy {
     void onMetricReceived(PointsSpy pointsSpy, boolean accessed, String metric, String host,
                           Multimap<String, String> pointTags, long timestamp, double value);
 
+    /**
+     * Invoked for every point, override to work off the reusable view instead of materializing
+     * metric, host and point tags for {@link #onMetricReceived}.
+     *
+     * @param point Point, only valid for the duration of the call.
+     */
+    default void onPointReceived(PointsSpy pointsSpy, SpyPoint point) {
+      onMetricReceived(pointsSpy, point.isAccessed(), point.getMetric(), point.getHost(),
+          point.getPointTags(null), point.getTimestamp(), point.getValue());
+    }
+
     void onConnectivityChanged(PointsSpy pointsSpy, boolean connected, @Nullable String message);
 
     void onConnecting(PointsSpy pointsSpy);
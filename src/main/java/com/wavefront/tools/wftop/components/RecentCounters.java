@@ -0,0 +1,88 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Points, accessed points and value range of a node in a ring of {@link #INTERVALS} intervals of
+ * {@link #INTERVAL_MILLIS}, from which {@link RecentStats} over the last 1, 5 or 15 minutes are
+ * read. Intervals are aligned on wall-clock time and recycled once expired, so memory stays the same
+ * however long the session runs. Guarded by its own monitor.
+ */
+final class RecentCounters {
+
+  static final long INTERVAL_MILLIS = 60_000;
+  static final int INTERVALS = 15;
+  /**
+   * Rough size of the counters: the object and its five arrays.
+   */
+  static final long BYTES = 32 + 5 * (16 + INTERVALS * 8);
+
+  private final LongSupplier clock;
+  // epoch of the interval each slot holds, -1 if none.
+  private final long[] epochs = new long[INTERVALS];
+  private final long[] counts = new long[INTERVALS];
+  private final long[] accessed = new long[INTERVALS];
+  private final double[] mins = new double[INTERVALS];
+  private final double[] maxes = new double[INTERVALS];
+
+  RecentCounters() {
+    this(System::currentTimeMillis);
+  }
+
+  /**
+   * @param clock Current time in milliseconds.
+   */
+  RecentCounters(LongSupplier clock) {
+    this.clock = clock;
+    Arrays.fill(epochs, -1);
+  }
+
+  /**
+   * @param min Smallest value of the points, greater than max if none had a value.
+   */
+  synchronized void add(long count, long accessed, double min, double max) {
+    long epoch = clock.getAsLong() / INTERVAL_MILLIS;
+    int slot = (int) (epoch % INTERVALS);
+    if (epochs[slot] != epoch) {
+      epochs[slot] = epoch;
+      counts[slot] = 0;
+      this.accessed[slot] = 0;
+      mins[slot] = Double.MAX_VALUE;
+      maxes[slot] = -Double.MAX_VALUE;
+    }
+    counts[slot] += count;
+    this.accessed[slot] += accessed;
+    mins[slot] = Math.min(mins[slot], min);
+    maxes[slot] = Math.max(maxes[slot], max);
+  }
+
+  /**
+   * @return End of the latest interval points were added in, {@link Long#MIN_VALUE} if none.
+   */
+  synchronized long lastUpdated() {
+    long latest = -1;
+    for (long epoch : epochs) {
+      latest = Math.max(latest, epoch);
+    }
+    return latest < 0 ? Long.MIN_VALUE : (latest + 1) * INTERVAL_MILLIS;
+  }
+
+  /**
+   * @param minutes Window, up to {@link #INTERVALS} minutes (the current interval counts as one).
+   */
+  synchronized RecentStats get(int minutes) {
+    long epoch = clock.getAsLong() / INTERVAL_MILLIS;
+    long count = 0, accessed = 0;
+    double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+    for (int i = 0; i < INTERVALS; i++) {
+      if (epochs[i] > epoch - minutes && epochs[i] <= epoch) {
+        count += counts[i];
+        accessed += this.accessed[i];
+        min = Math.min(min, mins[i]);
+        max = Math.max(max, maxes[i]);
+      }
+    }
+    return count == 0 ? RecentStats.EMPTY : new RecentStats(count, accessed, min, max);
+  }
+}
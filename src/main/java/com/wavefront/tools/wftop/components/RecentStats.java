@@ -0,0 +1,70 @@
+package com.wavefront.tools.wftop.components;
+
+/**
+ * Points, accessed points and value range of a node over the last few minutes (see
+ * {@link Node#getRecentStats}), as opposed to the session-long counters.
+ */
+public final class RecentStats {
+
+  /**
+   * Windows statistics are kept for, same as the rates of a {@link io.dropwizard.metrics5.Meter}.
+   */
+  public static final int[] MINUTES = {1, 5, 15};
+
+  static final RecentStats EMPTY = new RecentStats(0, 0, Double.MAX_VALUE, -Double.MAX_VALUE);
+
+  private final long count;
+  private final long accessed;
+  private final double min;
+  private final double max;
+
+  RecentStats(long count, long accessed, double min, double max) {
+    this.count = count;
+    this.accessed = accessed;
+    this.min = min;
+    this.max = max;
+  }
+
+  /**
+   * @throws IllegalArgumentException If minutes is not one of {@link #MINUTES}.
+   */
+  static int index(int minutes) {
+    for (int i = 0; i < MINUTES.length; i++) {
+      if (MINUTES[i] == minutes) return i;
+    }
+    throw new IllegalArgumentException("Recent statistics are kept over 1, 5 or 15 minutes, not " +
+        minutes);
+  }
+
+  /**
+   * @return Statistics of both nodes together.
+   */
+  RecentStats plus(RecentStats other) {
+    if (other.count == 0) return this;
+    if (count == 0) return other;
+    return new RecentStats(count + other.count, accessed + other.accessed,
+        Math.min(min, other.min), Math.max(max, other.max));
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getAccessed() {
+    return accessed;
+  }
+
+  /**
+   * @return Share of points found to be accessed, 0 without points.
+   */
+  public double getAccessedRatio() {
+    return count == 0 ? 0 : (double) accessed / count;
+  }
+
+  /**
+   * @return Range of values, 0 if no point with a value was seen.
+   */
+  public double getRange() {
+    return max < min ? 0 : max - min;
+  }
+}
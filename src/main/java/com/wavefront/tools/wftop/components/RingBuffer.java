@@ -0,0 +1,158 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Bounded ring of preallocated slots that hands elements from producers to consumers without
+ * allocating. Producers never block: when the ring is full the element is dropped and counted.
+ * Consumers trade in a spare slot for a filled one, so slots are recycled rather than copied.
+ *
+ * @param <E> Slot type.
+ */
+public class RingBuffer<E> {
+
+  private final Object[] slots;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final LongAdder dropped = new LongAdder();
+  private int head = 0;
+  private int count = 0;
+
+  /**
+   * @param capacity Number of slots.
+   * @param factory  Creates the slots up-front.
+   */
+  public RingBuffer(int capacity, Supplier<E> factory) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Cannot create ring buffer with capacity < 1");
+    }
+    this.slots = new Object[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = factory.get();
+    }
+  }
+
+  /**
+   * Fill the next free slot. The writer is invoked while the ring is locked and should only copy
+   * {@code arg} into the slot.
+   *
+   * @param writer Copies the argument into the slot.
+   * @param arg    Argument to the writer.
+   * @return false if the ring was full and the element was dropped.
+   */
+  public <A> boolean offer(BiConsumer<E, A> writer, A arg) {
+    lock.lock();
+    try {
+      if (count == slots.length) {
+        dropped.increment();
+        return false;
+      }
+      int tail = head + count;
+      if (tail >= slots.length) tail -= slots.length;
+      @SuppressWarnings("unchecked")
+      E slot = (E) slots[tail];
+      writer.accept(slot, arg);
+      count++;
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Fill the next free slot, waiting for one to become available if the ring is full. Use when the
+   * producer can afford to be slowed down rather than lose the element.
+   *
+   * @param writer Copies the argument into the slot.
+   * @param arg    Argument to the writer.
+   */
+  public <A> void put(BiConsumer<E, A> writer, A arg) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count == slots.length) {
+        notFull.await();
+      }
+      int tail = head + count;
+      if (tail >= slots.length) tail -= slots.length;
+      @SuppressWarnings("unchecked")
+      E slot = (E) slots[tail];
+      writer.accept(slot, arg);
+      count++;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take the oldest filled slot, leaving {@code spare} in its place for producers to reuse.
+   *
+   * @param spare   Slot owned by the caller, handed over only if an element is returned.
+   * @param timeout Maximum time to wait for an element.
+   * @param unit    Unit of timeout.
+   * @return Filled slot (now owned by the caller) or null if none arrived in time.
+   */
+  public E poll(E spare, long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (nanos <= 0) return null;
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      @SuppressWarnings("unchecked")
+      E filled = (E) slots[head];
+      slots[head] = spare;
+      if (++head == slots.length) head = 0;
+      count--;
+      notFull.signal();
+      return filled;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Discard all pending elements (slots are kept for reuse).
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      head = 0;
+      count = 0;
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return Number of filled slots waiting for a consumer.
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int capacity() {
+    return slots.length;
+  }
+
+  /**
+   * @return Number of elements dropped because the ring was full.
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+}
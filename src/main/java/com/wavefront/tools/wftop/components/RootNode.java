@@ -1,27 +1,60 @@
 package com.wavefront.tools.wftop.components;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Multimap;
 import com.google.common.util.concurrent.AtomicDouble;
 import io.dropwizard.metrics5.Histogram;
-import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.Metered;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Root of nodes tree, accepts data points and distributes accordingly.
+ * Root of nodes tree, accepts data points and distributes accordingly. Points only go to the tree
+ * of their ingestion source, statistics across all sources are merged from those trees when read.
  *
  * @author Joanna Ko (kjoanna@vmware.com)
  */
 public class RootNode implements Node<SourceNode> {
   private final String value;
-  private final String WAVEFRONT_SOURCE_TAG_KEY = "_wavefront_source";
+  public static final String WAVEFRONT_SOURCE_TAG_KEY = "_wavefront_source";
   private final Map<String, SourceNode> ingestionSource = new ConcurrentHashMap<>();
-  private SourceNode globalNode = new SourceNode("None");
+  /**
+   * Statistics across all sources, merged from the roots of their trees.
+   */
+  private final MergedNode globalNode = new MergedNode("None", this::getSourceRoots);
   private String separators = ".-_=";
   private int depthLimit = 10;
   private int topLevelDepth = 1;
   private int branchLimit = 1000;
+  private boolean rollUp = false;
+  private int log2m = NodeStats.DEFAULT_LOG2M;
+  private int regwidth = NodeStats.DEFAULT_REGWIDTH;
+  private boolean offHeap = false;
+  /**
+   * Workers owning a shard of each tree, null when trees are updated on the ingest threads.
+   */
+  @Nullable
+  private ShardedIngest shardedIngest = null;
+  /**
+   * Coalesces points before they reach the trees, null when points are applied one by one.
+   */
+  @Nullable
+  private PointCoalescer pointCoalescer = null;
+  /**
+   * Evicts idle namespaces from the trees, null when they are kept for the whole session.
+   */
+  @Nullable
+  private IdleSweeper idleSweeper = null;
+  /**
+   * Keeps the trees within a share of the heap, null when they are only bound by their limits.
+   */
+  @Nullable
+  private MemoryBudget memoryBudget = null;
+  private volatile boolean expansionPaused = false;
 
   public RootNode(String value) {
     this.value = value;
@@ -40,42 +73,57 @@ public class RootNode implements Node<SourceNode> {
 
   @Override
   public long getEstimatedHostCardinality() {
-    return globalNode.getNamespaceBuilder().getRoot().getEstimatedHostCardinality();
+    return globalNode.getEstimatedHostCardinality();
   }
 
   @Override
   public long getEstimatedMetricCardinality() {
-    return globalNode.getNamespaceBuilder().getRoot().getEstimatedMetricCardinality();
+    return globalNode.getEstimatedMetricCardinality();
   }
 
   @Override
   public Histogram getLag() {
-    return globalNode.getNamespaceBuilder().getRoot().getLag();
+    return globalNode.getLag();
   }
 
   @Override
   public int getAccessed() {
-    return globalNode.getNamespaceBuilder().getRoot().getAccessed();
+    return globalNode.getAccessed();
+  }
+
+  @Override
+  public Metered getRate() {
+    return globalNode.getRate();
+  }
+
+  @Override
+  public RecentStats getRecentStats(int minutes) {
+    return globalNode.getRecentStats(minutes);
   }
 
   @Override
-  public Meter getRate() {
-    return globalNode.getNamespaceBuilder().getRoot().getRate();
+  public void markVisible() {
+    globalNode.markVisible();
+  }
+
+  @Override
+  public long getEstimatedBytes() {
+    return globalNode.getEstimatedBytes();
   }
 
   @Override
   public boolean isLimited() {
-    return globalNode.getNamespaceBuilder().getRoot().isLimited();
+    return globalNode.isLimited();
   }
 
   @Override
   public AtomicDouble getMin() {
-    return globalNode.getNamespaceBuilder().getRoot().getMin();
+    return globalNode.getMin();
   }
 
   @Override
   public AtomicDouble getMax() {
-    return globalNode.getNamespaceBuilder().getRoot().getMax();
+    return globalNode.getMax();
   }
 
   @Override
@@ -95,7 +143,6 @@ public class RootNode implements Node<SourceNode> {
    */
   public void accept(String name) {
     ingestionSource.get("None").accept(name);
-    globalNode.accept(name);
   }
 
   /**
@@ -121,14 +168,31 @@ public class RootNode implements Node<SourceNode> {
           break;
         }
       }
-      if (ingestionSource.get(source_value) == null) {
+      if (!ingestionSource.containsKey(source_value)) {
         setUpSourceNode(source_value);
       }
     }
     ingestionSource.get(source_value).accept(analysisDimension, accessed, metric, host,
         pointTags, timestamp, value);
-    globalNode.accept(analysisDimension, accessed, metric, host,
-        pointTags, timestamp, value);
+  }
+
+  /**
+   * Accept point.
+   *
+   * @param analysisDimension      Analysis Dimension chosen.
+   * @param groupByIngestionSource Choose whether to group by Ingestion Source.
+   * @param point                  Point (only valid for the duration of the call).
+   */
+  public void accept(Dimension analysisDimension, boolean groupByIngestionSource, SpyPoint point) {
+    String source_value = "None";
+    if (groupByIngestionSource) {
+      String source = point.getPointTag(WAVEFRONT_SOURCE_TAG_KEY);
+      if (source != null) source_value = source;
+      if (!ingestionSource.containsKey(source_value)) {
+        setUpSourceNode(source_value);
+      }
+    }
+    ingestionSource.get(source_value).accept(analysisDimension, point);
   }
 
   public String getSeparatorCharacters() {
@@ -139,14 +203,17 @@ public class RootNode implements Node<SourceNode> {
    * Clears SourceNodes and adds default SourceNode "None".
    */
   public void reset() {
-    globalNode = new SourceNode("None");
     ingestionSource.clear();
-    ingestionSource.put("None", new SourceNode("None"));
+    ingestionSource.put("None", new SourceNode("None", shardedIngest, pointCoalescer));
     //set Configurations for NamespaceBuilder
     setSeparatorCharacters(separators);
     setMaxDepth(depthLimit);
     setMaxChildren(branchLimit);
     setTopLevelDepth(topLevelDepth);
+    setRollUp(rollUp);
+    setCardinalityPrecision(log2m, regwidth);
+    setOffHeap(offHeap);
+    setExpansionPaused(expansionPaused);
   }
 
   public int getMaxDepth() {
@@ -161,6 +228,168 @@ public class RootNode implements Node<SourceNode> {
     return branchLimit;
   }
 
+  public int getShards() {
+    return shardedIngest == null ? 1 : shardedIngest.getShards();
+  }
+
+  /**
+   * Partition each tree by top-level namespace across worker threads that are the single writer of
+   * their shard. Resets all trees.
+   *
+   * @param shards Number of workers, 1 to update trees directly on the ingest threads.
+   */
+  public void setShards(int shards) {
+    if (shards < 1) {
+      throw new IllegalArgumentException("Cannot set shards to < 1");
+    }
+    if (shards == getShards()) return;
+    if (shardedIngest != null) {
+      shardedIngest.shutdown();
+    }
+    shardedIngest = shards == 1 ? null : new ShardedIngest(shards);
+    reset();
+  }
+
+  public long getCoalesceWindow() {
+    return pointCoalescer == null ? 0 : pointCoalescer.getWindowMillis();
+  }
+
+  /**
+   * Coalesce the points for the same namespace that arrive within a short window and apply them to
+   * the trees at once. Resets all trees.
+   *
+   * @param windowMillis Window in milliseconds, 0 to apply points one by one.
+   */
+  public void setCoalesceWindow(long windowMillis) {
+    if (windowMillis < 0) {
+      throw new IllegalArgumentException("Cannot set coalesce window to < 0");
+    }
+    if (windowMillis == getCoalesceWindow()) return;
+    if (pointCoalescer != null) {
+      pointCoalescer.shutdown();
+    }
+    pointCoalescer = windowMillis == 0 ? null : new PointCoalescer(windowMillis);
+    reset();
+  }
+
+  public long getIdleTtl() {
+    return idleSweeper == null ? 0 : idleSweeper.getTtlMillis();
+  }
+
+  /**
+   * Evict namespaces that have not seen points for a while from the trees, in the background.
+   *
+   * @param ttlMillis How long a namespace's whole subtree must have been idle for, 0 to keep
+   *                  namespaces for the whole session.
+   */
+  public void setIdleTtl(long ttlMillis) {
+    if (ttlMillis < 0) {
+      throw new IllegalArgumentException("Cannot set idle TTL to < 0");
+    }
+    if (ttlMillis == getIdleTtl()) return;
+    if (idleSweeper != null) {
+      idleSweeper.shutdown();
+    }
+    idleSweeper = ttlMillis == 0 ? null : new IdleSweeper(this, ttlMillis);
+  }
+
+  /**
+   * Evict namespaces idle for ttlMillis from the trees of all sources.
+   *
+   * @return Number of namespaces evicted, see {@link NamespaceBuilder#evictIdle}.
+   */
+  int evictIdle(long ttlMillis) {
+    int evicted = 0;
+    for (SourceNode source : ingestionSource.values()) {
+      evicted += source.evictIdle(ttlMillis);
+    }
+    return evicted;
+  }
+
+  public double getMemoryBudget() {
+    return memoryBudget == null ? 0 : memoryBudget.getHeapFraction();
+  }
+
+  /**
+   * Keep the trees within a share of the max heap by pausing the creation of namespaces and
+   * coarsening the trees when over it, see {@link MemoryBudget}.
+   *
+   * @param heapFraction Share of the max heap, 0 to only bound trees by their depth and branch
+   *                     limits.
+   */
+  public void setMemoryBudget(double heapFraction) {
+    if (heapFraction < 0 || heapFraction > 1) {
+      throw new IllegalArgumentException("Cannot set memory budget outside of [0, 1]");
+    }
+    if (heapFraction == getMemoryBudget()) return;
+    if (memoryBudget != null) {
+      memoryBudget.shutdown();
+    }
+    memoryBudget = heapFraction == 0 ? null : new MemoryBudget(this, heapFraction);
+    setExpansionPaused(false);
+  }
+
+  /**
+   * Estimate the memory held by each namespace of all trees, for {@link #getEstimatedBytes}.
+   *
+   * @return Estimated bytes of all trees.
+   */
+  public long accountMemory() {
+    long bytes = 0;
+    for (SourceNode source : ingestionSource.values()) {
+      bytes += source.accountMemory();
+    }
+    return bytes;
+  }
+
+  /**
+   * Coarsen all trees to free about fraction of their memory, see {@link NamespaceBuilder#coarsen}.
+   *
+   * @return Estimated bytes freed.
+   */
+  long coarsen(double fraction) {
+    long freed = 0;
+    for (SourceNode source : ingestionSource.values()) {
+      freed += source.coarsen(fraction);
+    }
+    return freed;
+  }
+
+  public boolean isExpansionPaused() {
+    return expansionPaused;
+  }
+
+  /**
+   * Stop (or resume) creating namespaces in all trees, see
+   * {@link NamespaceBuilder#setExpansionPaused}.
+   */
+  void setExpansionPaused(boolean expansionPaused) {
+    this.expansionPaused = expansionPaused;
+    this.getNodes().forEach((k, v) ->
+        v.setExpansionPaused(this.expansionPaused));
+  }
+
+  /**
+   * Wait until points being coalesced or queued for shard workers have been applied to the trees.
+   */
+  @VisibleForTesting
+  void flush() throws InterruptedException {
+    if (pointCoalescer != null) {
+      pointCoalescer.flush();
+    }
+    if (shardedIngest != null) {
+      shardedIngest.flush();
+    }
+  }
+
+  private List<NamespaceNode> getSourceRoots() {
+    List<NamespaceNode> roots = new ArrayList<>();
+    for (SourceNode source : ingestionSource.values()) {
+      roots.addAll(source.getShardRoots());
+    }
+    return roots;
+  }
+
   /**
    * @return SourceNode "None", the default when Group By Source not specified.
    */
@@ -190,6 +419,47 @@ public class RootNode implements Node<SourceNode> {
         v.setTopLevelDepth(this.topLevelDepth));
   }
 
+  public boolean isRollUp() {
+    return rollUp;
+  }
+
+  /**
+   * Only update the deepest namespace reached by each point, parents are rolled up when read.
+   * Resets all trees.
+   */
+  public void setRollUp(boolean rollUp) {
+    this.rollUp = rollUp;
+    this.getNodes().forEach((k, v) ->
+        v.setRollUp(this.rollUp));
+  }
+
+  /**
+   * Parameters of the cardinality sketches of each tree's root, deeper namespaces use fewer
+   * registers. Resets all trees.
+   *
+   * @param log2m    Log2 of the number of registers.
+   * @param regwidth Bits per register.
+   */
+  public void setCardinalityPrecision(int log2m, int regwidth) {
+    this.log2m = log2m;
+    this.regwidth = regwidth;
+    this.getNodes().forEach((k, v) ->
+        v.setCardinalityPrecision(this.log2m, this.regwidth));
+  }
+
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  /**
+   * Keep counters and cardinality sketches of all trees off-heap. Resets all trees.
+   */
+  public void setOffHeap(boolean offHeap) {
+    this.offHeap = offHeap;
+    this.getNodes().forEach((k, v) ->
+        v.setOffHeap(this.offHeap));
+  }
+
   public void setMaxChildren(int maxChildren) {
     this.branchLimit = maxChildren;
     this.getNodes().forEach((k, v) ->
@@ -197,10 +467,18 @@ public class RootNode implements Node<SourceNode> {
   }
 
   private void setUpSourceNode(String source_value) {
-    ingestionSource.put(source_value, new SourceNode(source_value));
-    ingestionSource.get(source_value).setSeparatorCharacters(this.separators);
-    ingestionSource.get(source_value).setMaxDepth(this.depthLimit);
-    ingestionSource.get(source_value).setMaxChildren(this.branchLimit);
-    ingestionSource.get(source_value).setTopLevelDepth(this.topLevelDepth);
+    // points can arrive from several ingest threads, only the first one creates the node.
+    ingestionSource.computeIfAbsent(source_value, k -> {
+      SourceNode sourceNode = new SourceNode(k, shardedIngest, pointCoalescer);
+      sourceNode.setSeparatorCharacters(this.separators);
+      sourceNode.setMaxDepth(this.depthLimit);
+      sourceNode.setMaxChildren(this.branchLimit);
+      sourceNode.setTopLevelDepth(this.topLevelDepth);
+      sourceNode.setRollUp(this.rollUp);
+      sourceNode.setCardinalityPrecision(this.log2m, this.regwidth);
+      sourceNode.setOffHeap(this.offHeap);
+      sourceNode.setExpansionPaused(this.expansionPaused);
+      return sourceNode;
+    });
   }
 }
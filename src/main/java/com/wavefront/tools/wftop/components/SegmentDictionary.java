@@ -0,0 +1,64 @@
+package com.wavefront.tools.wftop.components;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Segments of one namespace tree. Each distinct segment (e.g. "com." or "prod-") is stored once
+ * however many subtrees it shows up in, and gets a small id that children are keyed by. Shared by
+ * all nodes of a tree and dropped with it on reset.
+ * <p>
+ * Segments are counted by the nodes holding them, and dropped once the last of those is evicted so
+ * that churning namespaces don't grow the dictionary forever. Ids are not reused: a segment that
+ * comes back gets a new one.
+ */
+final class SegmentDictionary {
+
+  private final ConcurrentHashMap<String, Segment> segments = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  /**
+   * @return Segment for value, added to the dictionary if new, held for one more node until
+   * {@link #release released}.
+   */
+  Segment acquire(String value) {
+    return segments.compute(value, (k, segment) -> {
+      if (segment == null) segment = new Segment(k, nextId.getAndIncrement());
+      segment.nodes++;
+      return segment;
+    });
+  }
+
+  /**
+   * A node holding segment id for value is gone, drop the segment if it was the last one.
+   */
+  void release(String value, int id) {
+    segments.computeIfPresent(value, (k, segment) ->
+        segment.id != id || --segment.nodes > 0 ? segment : null);
+  }
+
+  /**
+   * @return Segment for value, null if no node of the tree has it.
+   */
+  @Nullable
+  Segment lookup(String value) {
+    return segments.get(value);
+  }
+
+  int size() {
+    return segments.size();
+  }
+
+  static final class Segment {
+    final String value;
+    final int id;
+    // nodes holding the segment, guarded by the dictionary's map.
+    private int nodes = 0;
+
+    private Segment(String value, int id) {
+      this.value = value;
+      this.id = id;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package com.wavefront.tools.wftop.components;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Worker threads that each own one shard of every {@link SourceNode}. Points are routed by the hash
+ * of their top-level namespace, so a shard's builder only ever has a single writer and top-level
+ * namespaces never span shards (which keeps merging at read time down to the shard roots).
+ */
+public class ShardedIngest {
+
+  private static final Logger log = Logger.getLogger(ShardedIngest.class.getCanonicalName());
+  private static final int SHARD_BUFFER_SIZE = 4096;
+
+  private final RingBuffer<ShardedPoint>[] rings;
+  private final Thread[] workers;
+  private final AtomicLong pending = new AtomicLong();
+  private final ThreadLocal<ShardedPoint> scratch = ThreadLocal.withInitial(ShardedPoint::new);
+  private volatile boolean running = true;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public ShardedIngest(int shards) {
+    if (shards < 2) {
+      throw new IllegalArgumentException("Cannot shard ingestion across < 2 workers");
+    }
+    this.rings = new RingBuffer[shards];
+    this.workers = new Thread[shards];
+    for (int i = 0; i < shards; i++) {
+      RingBuffer<ShardedPoint> ring = new RingBuffer<>(SHARD_BUFFER_SIZE, ShardedPoint::new);
+      rings[i] = ring;
+      workers[i] = new Thread(() -> work(ring), "wftop-shard-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  public int getShards() {
+    return rings.length;
+  }
+
+  /**
+   * @return Shard owning the given top-level namespace.
+   */
+  int shardOf(CharSequence input, int topLevelEnd) {
+    int hash = MurmurHash3.murmurhash3_x86_32(input, 0, topLevelEnd, 0);
+    return (hash & Integer.MAX_VALUE) % rings.length;
+  }
+
+  /**
+   * Queue a point for the worker owning {@code shard}, waiting if that worker is behind (the ingest
+   * pipeline in front of us drops lines instead). Its lag is taken now, time spent in the queue
+   * does not count.
+   */
+  void submit(int shard, NamespaceBuilder builder, String input, long hostHash, long metricHash,
+              long timestamp, double value, boolean accessed, boolean spyOnPoint) {
+    ShardedPoint point = scratch.get();
+    point.builder = builder;
+    point.input = input;
+    point.hostHash = hostHash;
+    point.metricHash = metricHash;
+    point.lag = spyOnPoint ? System.currentTimeMillis() - timestamp : 0;
+    point.value = value;
+    point.accessed = accessed;
+    point.spyOnPoint = spyOnPoint;
+    pending.incrementAndGet();
+    try {
+      rings[shard].put(ShardedPoint::copyFrom, point);
+    } catch (InterruptedException e) {
+      pending.decrementAndGet();
+      Thread.currentThread().interrupt();
+    } finally {
+      point.clear();
+    }
+  }
+
+  /**
+   * Queue coalesced points for the worker owning {@code shard}, see above.
+   */
+  void submit(int shard, NamespaceBuilder builder, String input, CoalescedPoints points) {
+    ShardedPoint point = scratch.get();
+    point.builder = builder;
+    point.input = input;
+    point.points = points;
+    pending.incrementAndGet();
+    try {
+      rings[shard].put(ShardedPoint::copyFrom, point);
+    } catch (InterruptedException e) {
+      pending.decrementAndGet();
+      Thread.currentThread().interrupt();
+    } finally {
+      point.clear();
+    }
+  }
+
+  /**
+   * Wait until all submitted points have been applied.
+   */
+  @VisibleForTesting
+  public void flush() throws InterruptedException {
+    while (pending.get() > 0) {
+      Thread.sleep(1);
+    }
+  }
+
+  public void shutdown() {
+    running = false;
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  private void work(RingBuffer<ShardedPoint> ring) {
+    ShardedPoint point = new ShardedPoint();
+    while (running) {
+      ShardedPoint filled;
+      try {
+        filled = ring.poll(point, 100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (filled == null) continue;
+      point = filled;
+      try {
+        if (point.points != null) {
+          point.builder.accept(point.input, point.points);
+        } else {
+          point.builder.acceptWithLag(point.input, point.hostHash, point.metricHash, point.lag,
+              point.value, point.accessed, point.spyOnPoint);
+        }
+      } catch (Exception ex) {
+        log.log(Level.WARNING, "Failed to apply point: " + point.input, ex);
+      } finally {
+        point.clear();
+        pending.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Reusable ring slot for a point routed to a shard.
+   */
+  private static class ShardedPoint {
+    private NamespaceBuilder builder;
+    private String input;
+    private long hostHash;
+    private long metricHash;
+    private long lag;
+    private double value;
+    private boolean accessed;
+    private boolean spyOnPoint;
+    /**
+     * Set instead of the fields above for points coalesced beforehand.
+     */
+    @Nullable
+    private CoalescedPoints points;
+
+    private void copyFrom(ShardedPoint other) {
+      this.builder = other.builder;
+      this.input = other.input;
+      this.hostHash = other.hostHash;
+      this.metricHash = other.metricHash;
+      this.lag = other.lag;
+      this.value = other.value;
+      this.accessed = other.accessed;
+      this.spyOnPoint = other.spyOnPoint;
+      this.points = other.points;
+    }
+
+    /**
+     * Drop references so recycled slots don't keep discarded trees alive.
+     */
+    private void clear() {
+      this.builder = null;
+      this.input = null;
+      this.points = null;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.wavefront.tools.wftop.components;
+
+import net.agkn.hll.HLL;
+
+import javax.annotation.Nullable;
+import java.util.function.LongSupplier;
+
+/**
+ * Cardinality over the last 15 to 30 minutes rather than the whole session. Values go to the
+ * sketch of the current generation of {@link #GENERATION_MILLIS}, estimates cover it and the
+ * previous one. When a generation starts, the sketch of the one before last is cleared and reused,
+ * so a node never holds more than two sketches. Guarded by its own monitor.
+ */
+final class SlidingSketch {
+
+  static final long GENERATION_MILLIS = RecentCounters.INTERVAL_MILLIS * RecentCounters.INTERVALS;
+
+  @Nullable
+  private final NodeSlab slab;
+  private final int log2m;
+  private final int regwidth;
+  private final LongSupplier clock;
+  private CardinalitySketch current;
+  @Nullable
+  private CardinalitySketch previous = null;
+  private long generation;
+  // estimate over both generations, which takes a union to compute.
+  private long cardinality = -1;
+  private long computedAt;
+  // whether values came in since the estimate was computed.
+  private boolean dirty = false;
+  private boolean released = false;
+
+  SlidingSketch(@Nullable NodeSlab slab, int log2m, int regwidth) {
+    this(slab, log2m, regwidth, System::currentTimeMillis);
+  }
+
+  /**
+   * @param clock Current time in milliseconds.
+   */
+  SlidingSketch(@Nullable NodeSlab slab, int log2m, int regwidth, LongSupplier clock) {
+    this.slab = slab;
+    this.log2m = log2m;
+    this.regwidth = regwidth;
+    this.clock = clock;
+    this.current = CardinalitySketch.create(slab, log2m, regwidth, clock);
+    this.generation = clock.getAsLong() / GENERATION_MILLIS;
+  }
+
+  synchronized void addRaw(long hash) {
+    rotate();
+    current.addRaw(hash);
+    dirty = true;
+  }
+
+  /**
+   * Add the first count hashes at once.
+   */
+  synchronized void addRaw(long[] hashes, int count) {
+    if (count == 0) return;
+    rotate();
+    current.addRaw(hashes, count);
+    dirty = true;
+  }
+
+  /**
+   * @return Estimate over both generations. Once that takes a union, it is cached until values come
+   * in, and then for a short while at most.
+   */
+  synchronized long cardinality() {
+    long now = rotate();
+    if (previous == null) return current.cardinality();
+    if (cardinality < 0 || (dirty && now - computedAt > CardinalitySketch.CACHE_MILLIS)) {
+      cardinality = toHLL().cardinality();
+      computedAt = now;
+      dirty = false;
+    }
+    return cardinality;
+  }
+
+  /**
+   * @return Sketch to union or clone (see {@link CardinalitySketch#toHLL}), a union of both
+   * generations once there are two.
+   */
+  synchronized HLL toHLL() {
+    rotate();
+    if (previous == null) return current.toHLL();
+    HLL union = MergedNode.union(null, previous.toHLL());
+    return MergedNode.union(union, current.toHLL());
+  }
+
+  /**
+   * @return Rough size of both generations' sketches in bytes.
+   */
+  synchronized long estimatedBytes() {
+    return 64 + current.estimatedBytes() + (previous == null ? 0 : previous.estimatedBytes());
+  }
+
+  /**
+   * Give back both generations' slab storage, see {@link CardinalitySketch#release}.
+   */
+  synchronized void release() {
+    released = true;
+    current.release();
+    if (previous != null) previous.release();
+  }
+
+  /**
+   * @return Current time.
+   */
+  private long rotate() {
+    long now = clock.getAsLong();
+    // released sketches are never replaced.
+    if (released) return now;
+    long generation = now / GENERATION_MILLIS;
+    if (generation <= this.generation) return now;
+    if (generation == this.generation + 1) {
+      CardinalitySketch recycled = previous;
+      previous = current;
+      if (recycled == null) {
+        current = CardinalitySketch.create(slab, log2m, regwidth, clock);
+      } else {
+        recycled.clear();
+        current = recycled;
+      }
+    } else {
+      // nothing seen in the previous generation either.
+      current.clear();
+      if (previous != null) previous.clear();
+    }
+    this.generation = generation;
+    cardinality = -1;
+    return now;
+  }
+}
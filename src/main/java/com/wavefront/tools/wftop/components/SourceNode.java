@@ -3,8 +3,11 @@ package com.wavefront.tools.wftop.components;
 import com.google.common.collect.Multimap;
 import com.google.common.util.concurrent.AtomicDouble;
 import io.dropwizard.metrics5.Histogram;
-import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.Metered;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -16,9 +19,50 @@ public class SourceNode implements Node<NamespaceNode> {
 
   private final String value;
   private final NamespaceBuilder namespaceBuilder = new NamespaceBuilder();
+  /**
+   * When sharding, one builder per worker of {@link #shardedIngest}, otherwise just namespaceBuilder.
+   */
+  private final NamespaceBuilder[] builders;
+  @Nullable
+  private final ShardedIngest shardedIngest;
+  @Nullable
+  private final MergedNode mergedRoot;
+  @Nullable
+  private final PointCoalescer pointCoalescer;
 
   public SourceNode(String value) {
+    this(value, null);
+  }
+
+  /**
+   * @param shardedIngest Workers to shard points across, null to update the tree on the calling
+   *                      thread.
+   */
+  public SourceNode(String value, @Nullable ShardedIngest shardedIngest) {
+    this(value, shardedIngest, null);
+  }
+
+  /**
+   * @param shardedIngest  Workers to shard points across, null to update the tree on the calling
+   *                       thread.
+   * @param pointCoalescer Coalesces points before they are applied, null to apply them one by one.
+   */
+  SourceNode(String value, @Nullable ShardedIngest shardedIngest,
+             @Nullable PointCoalescer pointCoalescer) {
     this.value = value;
+    this.shardedIngest = shardedIngest;
+    this.pointCoalescer = pointCoalescer;
+    if (shardedIngest == null) {
+      this.builders = new NamespaceBuilder[]{namespaceBuilder};
+      this.mergedRoot = null;
+    } else {
+      this.builders = new NamespaceBuilder[shardedIngest.getShards()];
+      this.builders[0] = namespaceBuilder;
+      for (int i = 1; i < builders.length; i++) {
+        builders[i] = new NamespaceBuilder();
+      }
+      this.mergedRoot = new MergedNode("", this::getShardRoots);
+    }
   }
 
   @Override
@@ -33,42 +77,57 @@ public class SourceNode implements Node<NamespaceNode> {
 
   @Override
   public long getEstimatedHostCardinality() {
-    return namespaceBuilder.getRoot().getEstimatedHostCardinality();
+    return root().getEstimatedHostCardinality();
   }
 
   @Override
   public long getEstimatedMetricCardinality() {
-    return namespaceBuilder.getRoot().getEstimatedMetricCardinality();
+    return root().getEstimatedMetricCardinality();
   }
 
   @Override
   public Histogram getLag() {
-    return namespaceBuilder.getRoot().getLag();
+    return root().getLag();
   }
 
   @Override
   public int getAccessed() {
-    return namespaceBuilder.getRoot().getAccessed();
+    return root().getAccessed();
   }
 
   @Override
-  public Meter getRate() {
-    return namespaceBuilder.getRoot().getRate();
+  public Metered getRate() {
+    return root().getRate();
+  }
+
+  @Override
+  public RecentStats getRecentStats(int minutes) {
+    return root().getRecentStats(minutes);
+  }
+
+  @Override
+  public void markVisible() {
+    root().markVisible();
+  }
+
+  @Override
+  public long getEstimatedBytes() {
+    return root().getEstimatedBytes();
   }
 
   @Override
   public boolean isLimited() {
-    return namespaceBuilder.getRoot().isLimited();
+    return root().isLimited();
   }
 
   @Override
   public AtomicDouble getMin() {
-    return namespaceBuilder.getRoot().getMin();
+    return root().getMin();
   }
 
   @Override
   public AtomicDouble getMax() {
-    return namespaceBuilder.getRoot().getMax();
+    return root().getMax();
   }
 
   @Override
@@ -78,7 +137,7 @@ public class SourceNode implements Node<NamespaceNode> {
 
   @Override
   public Map<String, NamespaceNode> getNodes() {
-    return namespaceBuilder.getRoot().getNodes();
+    return root().getNodes();
   }
 
   /**
@@ -87,7 +146,8 @@ public class SourceNode implements Node<NamespaceNode> {
    * @param name Name of ID.
    */
   public void accept(String name) {
-    namespaceBuilder.accept(name, name, name, 0, 0, false, false);
+    long hash = NamespaceBuilder.hash(name);
+    accept(name, hash, hash, 0, 0, false, false);
   }
 
   /**
@@ -103,44 +163,198 @@ public class SourceNode implements Node<NamespaceNode> {
    */
   public void accept(Dimension analysisDimension, boolean accessed, String metric, String host,
                      Multimap<String, String> pointTags, long timestamp, double value) {
+    long hostHash = NamespaceBuilder.hash(host);
+    long metricHash = NamespaceBuilder.hash(metric);
     if (analysisDimension == Dimension.METRIC) {
-      namespaceBuilder.accept(metric, host, metric, timestamp, value, accessed, true);
+      accept(metric, hostHash, metricHash, timestamp, value, accessed, true);
     } else if (analysisDimension == Dimension.HOST) {
-      namespaceBuilder.accept(host, host, metric, timestamp, value, accessed, true);
+      accept(host, hostHash, metricHash, timestamp, value, accessed, true);
     } else if (analysisDimension == Dimension.POINT_TAG) {
       // here we are over-counting.
       for (Map.Entry<String, String> entry : pointTags.entries()) {
-        namespaceBuilder.accept(entry.getKey() + "=" + entry.getValue(), host, metric,
+        accept(entry.getKey() + "=" + entry.getValue(), hostHash, metricHash,
             timestamp, value, accessed, true);
       }
     } else if (analysisDimension == Dimension.POINT_TAG_KEY) {
       // here we are over-counting.
       for (String entry : pointTags.keySet()) {
-        namespaceBuilder.accept(entry, host, metric, timestamp, value, accessed, true);
+        accept(entry, hostHash, metricHash, timestamp, value, accessed, true);
       }
     }
   }
 
   /**
-   * @return NamespaceBuilder of SourceNode.
+   * Adds point to NamespaceBuilder, only decoding what the analysis dimension needs.
+   *
+   * @param analysisDimension Analysis Dimension chosen.
+   * @param point             Point (only valid for the duration of the call).
+   */
+  public void accept(Dimension analysisDimension, SpyPoint point) {
+    long hostHash = point.getHostHash();
+    long metricHash = point.getMetricHash();
+    boolean accessed = point.isAccessed();
+    long timestamp = point.getTimestamp();
+    double value = point.getValue();
+    if (analysisDimension == Dimension.METRIC) {
+      accept(point.getMetric(), hostHash, metricHash, timestamp, value, accessed, true);
+    } else if (analysisDimension == Dimension.HOST) {
+      accept(point.getHost(), hostHash, metricHash, timestamp, value, accessed, true);
+    } else if (analysisDimension == Dimension.POINT_TAG) {
+      // here we are over-counting.
+      for (int i = 0; i < point.getPointTagCount(); i++) {
+        accept(point.getPointTagKey(i) + "=" + point.getPointTagValue(i), hostHash, metricHash,
+            timestamp, value, accessed, true);
+      }
+    } else if (analysisDimension == Dimension.POINT_TAG_KEY) {
+      // here we are over-counting (but only once per distinct key).
+      for (int i = 0; i < point.getPointTagCount(); i++) {
+        String key = point.getPointTagKey(i);
+        if (isRepeatedKey(point, key, i)) continue;
+        accept(key, hostHash, metricHash, timestamp, value, accessed, true);
+      }
+    }
+  }
+
+  private static boolean isRepeatedKey(SpyPoint point, String key, int index) {
+    for (int i = 0; i < index; i++) {
+      if (point.getPointTagKey(i).equals(key)) return true;
+    }
+    return false;
+  }
+
+  private void accept(String input, long hostHash, long metricHash, long timestamp, double value,
+                      boolean accessed, boolean spyOnPoint) {
+    if (pointCoalescer != null) {
+      pointCoalescer.add(this, input, hostHash, metricHash, timestamp, value, accessed, spyOnPoint);
+    } else if (shardedIngest == null) {
+      namespaceBuilder.accept(input, hostHash, metricHash, timestamp, value, accessed, spyOnPoint);
+    } else {
+      int shard = shardedIngest.shardOf(input, namespaceBuilder.getTopLevelEnd(input));
+      shardedIngest.submit(shard, builders[shard], input, hostHash, metricHash, timestamp, value,
+          accessed, spyOnPoint);
+    }
+  }
+
+  /**
+   * Apply points coalesced for input, see {@link PointCoalescer}.
+   */
+  void apply(String input, CoalescedPoints points) {
+    if (shardedIngest == null) {
+      namespaceBuilder.accept(input, points);
+    } else {
+      int shard = shardedIngest.shardOf(input, namespaceBuilder.getTopLevelEnd(input));
+      shardedIngest.submit(shard, builders[shard], input, points);
+    }
+  }
+
+  /**
+   * Evict idle namespaces from the tree (from each shard's tree when sharding).
+   *
+   * @return Number of namespaces evicted, see {@link NamespaceBuilder#evictIdle}.
+   */
+  int evictIdle(long ttlMillis) {
+    int evicted = 0;
+    for (NamespaceBuilder builder : builders) {
+      evicted += builder.evictIdle(ttlMillis);
+    }
+    return evicted;
+  }
+
+  /**
+   * @return Estimated bytes of the tree (of all shards' trees), see
+   * {@link NamespaceBuilder#accountMemory}.
+   */
+  long accountMemory() {
+    long bytes = 0;
+    for (NamespaceBuilder builder : builders) {
+      bytes += builder.accountMemory();
+    }
+    return bytes;
+  }
+
+  /**
+   * Coarsen the tree (each shard's tree) to free about fraction of its memory.
+   *
+   * @return Estimated bytes freed, see {@link NamespaceBuilder#coarsen}.
+   */
+  long coarsen(double fraction) {
+    long freed = 0;
+    for (NamespaceBuilder builder : builders) {
+      freed += builder.coarsen(fraction);
+    }
+    return freed;
+  }
+
+  void setExpansionPaused(boolean expansionPaused) {
+    for (NamespaceBuilder builder : builders) {
+      builder.setExpansionPaused(expansionPaused);
+    }
+  }
+
+  /**
+   * @return Root of the namespace tree, a merged view of the shards' roots when sharding.
+   */
+  private Node<NamespaceNode> root() {
+    return mergedRoot == null ? namespaceBuilder.getRoot() : mergedRoot;
+  }
+
+  /**
+   * @return Roots of the shards' trees (just the one tree's root when not sharding).
+   */
+  List<NamespaceNode> getShardRoots() {
+    List<NamespaceNode> roots = new ArrayList<>(builders.length);
+    for (NamespaceBuilder builder : builders) {
+      roots.add(builder.getRoot());
+    }
+    return roots;
+  }
+
+  /**
+   * @return NamespaceBuilder of SourceNode (the first shard's when sharding).
    */
   public NamespaceBuilder getNamespaceBuilder() {
     return namespaceBuilder;
   }
 
   public void setSeparatorCharacters(String separators) {
-    namespaceBuilder.setSeparatorCharacters(separators);
+    for (NamespaceBuilder builder : builders) {
+      builder.setSeparatorCharacters(separators);
+    }
+  }
+
+  public void setRollUp(boolean rollUp) {
+    for (NamespaceBuilder builder : builders) {
+      builder.setRollUp(rollUp);
+    }
+  }
+
+  public void setOffHeap(boolean offHeap) {
+    for (NamespaceBuilder builder : builders) {
+      builder.setOffHeap(offHeap);
+    }
+  }
+
+  public void setCardinalityPrecision(int log2m, int regwidth) {
+    for (NamespaceBuilder builder : builders) {
+      builder.setCardinalityPrecision(log2m, regwidth);
+    }
   }
 
   public void setTopLevelDepth(int topLevelDepth) {
-    namespaceBuilder.setTopLevelDepth(topLevelDepth);
+    for (NamespaceBuilder builder : builders) {
+      builder.setTopLevelDepth(topLevelDepth);
+    }
   }
 
   public void setMaxDepth(int maxDepth) {
-    namespaceBuilder.setMaxDepth(maxDepth);
+    for (NamespaceBuilder builder : builders) {
+      builder.setMaxDepth(maxDepth);
+    }
   }
 
   public void setMaxChildren(int maxChildren) {
-    namespaceBuilder.setMaxChildren(maxChildren);
+    for (NamespaceBuilder builder : builders) {
+      builder.setMaxChildren(maxChildren);
+    }
   }
 }
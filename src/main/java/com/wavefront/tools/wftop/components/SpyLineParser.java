@@ -0,0 +1,420 @@
+package com.wavefront.tools.wftop.components;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Parses lines returned by /api/spy/points in place, on the raw response bytes. Only offsets are
+ * recorded while parsing; strings are decoded on demand (through a {@link StringCache}) and hashes
+ * are computed at most once per point. One parser is meant to be reused by a single thread for
+ * every line it handles, and is itself the {@link SpyPoint} view of the last line parsed.
+ * <p>
+ * Lines look like {@code metric source="host" timestamp value [tagKey="tagValue" ...]}, with the
+ * same rules as the spy API decoder in java-lib: the first annotation is mandatory, "source" wins
+ * over "host" (which then becomes the "_host" tag) and only {@code \"} is unescaped in quotes.
+ */
+class SpyLineParser implements SpyPoint {
+
+  static final String DEFAULT_HOST = "default";
+  private static final byte[] SOURCE = "source".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] HOST = "host".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] DEFAULT_HOST_BYTES = DEFAULT_HOST.getBytes(StandardCharsets.UTF_8);
+  private static final int CACHE_SIZE = 4096;
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  private byte[] buf;
+  private int pos;
+  private int end;
+
+  // token found by the last call to nextToken().
+  private int tokenStart;
+  private int tokenEnd;
+  private boolean tokenQuoted;
+
+  private int metricStart, metricEnd;
+  private boolean metricQuoted;
+  /**
+   * Index into the tag arrays of the annotation giving the host, -1 if none.
+   */
+  private int hostTag;
+  /**
+   * Whether the host is given by "source" (and "host" is then kept as the "_host" tag).
+   */
+  private boolean hasSource;
+  private boolean accessed;
+  private long timestamp;
+  private double value;
+
+  // computed on demand, once per point.
+  private String metric;
+  private String host;
+  private boolean metricHashed, hostHashed;
+  private long metricHash, hostHash;
+
+  // annotations, including the one giving the host.
+  private int tagCount;
+  private int[] keyStart = new int[16];
+  private int[] keyEnd = new int[16];
+  private int[] valueStart = new int[16];
+  private int[] valueEnd = new int[16];
+  private boolean[] keyQuoted = new boolean[16];
+  private boolean[] valueQuoted = new boolean[16];
+  // indices of the annotations that are point tags (i.e. all but the ones giving the host).
+  private int pointTagCount;
+  private int[] pointTags = new int[16];
+
+  private final StringCache cache = new StringCache(CACHE_SIZE);
+  private final MurmurHash3.LongPair longPair = new MurmurHash3.LongPair();
+  private byte[] scratch = new byte[256];
+  // bytes of the last token passed to resolve(), unescaped.
+  private byte[] resolved;
+  private int resolvedStart, resolvedEnd;
+
+  /**
+   * Parse a point.
+   *
+   * @param accessed Whether the point was accessed (the line prefix says so).
+   * @throws IllegalArgumentException if the line is not a valid point.
+   */
+  void parse(byte[] buf, int start, int end, boolean accessed) {
+    this.buf = buf;
+    this.pos = start;
+    this.end = end;
+    this.accessed = accessed;
+    this.tagCount = 0;
+    this.pointTagCount = 0;
+    this.hostTag = -1;
+    this.hasSource = false;
+    this.metric = null;
+    this.host = null;
+    this.metricHashed = false;
+    this.hostHashed = false;
+
+    if (!nextToken()) throw new IllegalArgumentException("Empty line");
+    metricStart = tokenStart;
+    metricEnd = tokenEnd;
+    metricQuoted = tokenQuoted;
+    // exactly one annotation before the timestamp.
+    readAnnotation();
+    if (!nextToken() || tokenQuoted) throw new IllegalArgumentException("Expected timestamp");
+    timestamp = parseTimestamp(tokenStart, tokenEnd);
+    if (!nextToken() || tokenQuoted) throw new IllegalArgumentException("Expected value");
+    value = parseDouble(tokenStart, tokenEnd);
+    while (skipWhitespace()) {
+      readAnnotation();
+    }
+    // the last "source" wins, then the last "host".
+    for (int i = 0; i < tagCount; i++) {
+      if (keyEquals(i, SOURCE)) {
+        hostTag = i;
+        hasSource = true;
+      } else if (!hasSource && keyEquals(i, HOST)) {
+        hostTag = i;
+      }
+    }
+    for (int i = 0; i < tagCount; i++) {
+      if (keyEquals(i, SOURCE) || (!hasSource && keyEquals(i, HOST))) continue;
+      pointTags[pointTagCount++] = i;
+    }
+  }
+
+  @Override
+  public boolean isAccessed() {
+    return accessed;
+  }
+
+  @Override
+  public String getMetric() {
+    if (metric == null) {
+      resolve(metricStart, metricEnd, metricQuoted);
+      metric = cache.get(resolved, resolvedStart, resolvedEnd);
+    }
+    return metric;
+  }
+
+  @Override
+  public String getHost() {
+    if (host == null) {
+      if (hostTag < 0) {
+        host = DEFAULT_HOST;
+      } else {
+        resolve(valueStart[hostTag], valueEnd[hostTag], valueQuoted[hostTag]);
+        host = cache.get(resolved, resolvedStart, resolvedEnd);
+      }
+    }
+    return host;
+  }
+
+  @Override
+  public long getMetricHash() {
+    if (!metricHashed) {
+      resolve(metricStart, metricEnd, metricQuoted);
+      metricHash = hashResolved();
+      metricHashed = true;
+    }
+    return metricHash;
+  }
+
+  @Override
+  public long getHostHash() {
+    if (!hostHashed) {
+      if (hostTag < 0) {
+        resolved = DEFAULT_HOST_BYTES;
+        resolvedStart = 0;
+        resolvedEnd = DEFAULT_HOST_BYTES.length;
+      } else {
+        resolve(valueStart[hostTag], valueEnd[hostTag], valueQuoted[hostTag]);
+      }
+      hostHash = hashResolved();
+      hostHashed = true;
+    }
+    return hostHash;
+  }
+
+  @Override
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public double getValue() {
+    return value;
+  }
+
+  @Override
+  public int getPointTagCount() {
+    return pointTagCount;
+  }
+
+  @Override
+  public String getPointTagKey(int index) {
+    int tag = pointTags[index];
+    if (keyEquals(tag, HOST)) return "_host";
+    resolve(keyStart[tag], keyEnd[tag], keyQuoted[tag]);
+    return cache.get(resolved, resolvedStart, resolvedEnd);
+  }
+
+  @Override
+  public String getPointTagValue(int index) {
+    int tag = pointTags[index];
+    resolve(valueStart[tag], valueEnd[tag], valueQuoted[tag]);
+    return cache.get(resolved, resolvedStart, resolvedEnd);
+  }
+
+  @Nullable
+  @Override
+  public String getPointTag(String key) {
+    for (int i = 0; i < pointTagCount; i++) {
+      int tag = pointTags[i];
+      if (keyEquals(tag, HOST)) {
+        if (!key.equals("_host")) continue;
+      } else {
+        resolve(keyStart[tag], keyEnd[tag], keyQuoted[tag]);
+        if (!StringCache.matches(key, resolved, resolvedStart, resolvedEnd)) continue;
+      }
+      return getPointTagValue(i);
+    }
+    return null;
+  }
+
+  /**
+   * Decode point tags (excluding the one giving the host).
+   *
+   * @param keys Only decode these tag keys, null for all of them.
+   * @return Point tags, an immutable empty multimap (not allocated) when there are none to return.
+   */
+  @Override
+  public Multimap<String, String> getPointTags(@Nullable Set<String> keys) {
+    Multimap<String, String> tags = null;
+    for (int i = 0; i < pointTagCount; i++) {
+      String key = getPointTagKey(i);
+      if (keys != null && !keys.contains(key)) continue;
+      if (tags == null) tags = ArrayListMultimap.create(pointTagCount, 1);
+      tags.put(key, getPointTagValue(i));
+    }
+    return tags == null ? ImmutableMultimap.of() : tags;
+  }
+
+  private void readAnnotation() {
+    if (!nextToken()) throw new IllegalArgumentException("Expected point tag");
+    int ks = tokenStart, ke = tokenEnd;
+    boolean kq = tokenQuoted;
+    if (!skipWhitespace() || buf[pos] != '=') {
+      throw new IllegalArgumentException("Tag keys and values must be separated by '='");
+    }
+    pos++;
+    if (!nextToken()) throw new IllegalArgumentException("Expected point tag value");
+    if (tagCount == keyStart.length) growTags();
+    keyStart[tagCount] = ks;
+    keyEnd[tagCount] = ke;
+    keyQuoted[tagCount] = kq;
+    valueStart[tagCount] = tokenStart;
+    valueEnd[tagCount] = tokenEnd;
+    valueQuoted[tagCount] = tokenQuoted;
+    tagCount++;
+  }
+
+  /**
+   * @return false if only whitespace remains.
+   */
+  private boolean skipWhitespace() {
+    while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t')) pos++;
+    return pos < end;
+  }
+
+  /**
+   * Find the next token, quoted tokens exclude the quotes. Unquoted tokens end at whitespace or '='.
+   *
+   * @return false if there are no more tokens.
+   */
+  private boolean nextToken() {
+    if (!skipWhitespace()) return false;
+    if (buf[pos] == '"') {
+      tokenQuoted = true;
+      tokenStart = ++pos;
+      while (pos < end && buf[pos] != '"') {
+        if (buf[pos] == '\\' && pos + 1 < end && buf[pos + 1] == '"') pos++;
+        pos++;
+      }
+      if (pos == end) throw new IllegalArgumentException("Unmatched quote character: (\")");
+      tokenEnd = pos++;
+    } else {
+      tokenQuoted = false;
+      tokenStart = pos;
+      while (pos < end && buf[pos] != ' ' && buf[pos] != '\t' && buf[pos] != '=') pos++;
+      tokenEnd = pos;
+      if (tokenStart == tokenEnd) throw new IllegalArgumentException("Unexpected '='");
+    }
+    return true;
+  }
+
+  private boolean keyEquals(int tag, byte[] key) {
+    int len = keyEnd[tag] - keyStart[tag];
+    if (len != key.length) return false;
+    for (int i = 0; i < len; i++) {
+      if (buf[keyStart[tag] + i] != key[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Point {@link #resolved} at the bytes of a token, unescaping it into the scratch buffer if needed.
+   */
+  private void resolve(int start, int end, boolean quoted) {
+    resolved = buf;
+    resolvedStart = start;
+    resolvedEnd = end;
+    if (!quoted) return;
+    for (int i = start; i < end - 1; i++) {
+      if (buf[i] == '\\' && buf[i + 1] == '"') {
+        // drop the backslash of every \".
+        if (scratch.length < end - start) scratch = new byte[end - start];
+        int len = 0;
+        for (int j = start; j < end; j++) {
+          if (buf[j] == '\\' && j + 1 < end && buf[j + 1] == '"') continue;
+          scratch[len++] = buf[j];
+        }
+        resolved = scratch;
+        resolvedStart = 0;
+        resolvedEnd = len;
+        return;
+      }
+    }
+  }
+
+  private long hashResolved() {
+    MurmurHash3.murmurhash3_x64_128(resolved, resolvedStart, resolvedEnd - resolvedStart, 0, longPair);
+    return longPair.val1;
+  }
+
+  /**
+   * Timestamps can be in seconds (possibly fractional), millis, micros or nanos; the unit is
+   * inferred from the number of digits, as done by java-lib.
+   */
+  private long parseTimestamp(int start, int end) {
+    long whole = 0;
+    int digits = 0;
+    int i = start;
+    for (; i < end && buf[i] != '.'; i++) {
+      int d = buf[i] - '0';
+      if (d < 0 || d > 9 || digits == 19) throw new IllegalArgumentException("Expected timestamp");
+      whole = whole * 10 + d;
+      digits++;
+    }
+    if (digits == 0) throw new IllegalArgumentException("Expected timestamp");
+    if (digits <= 12) {
+      long millis = whole * 1000;
+      if (i < end) {
+        // fractional seconds, keep millisecond precision.
+        long scale = 100;
+        for (i++; i < end; i++) {
+          int d = buf[i] - '0';
+          if (d < 0 || d > 9) throw new IllegalArgumentException("Expected timestamp");
+          millis += d * scale;
+          scale /= 10;
+        }
+      }
+      return millis;
+    } else if (digits <= 13) {
+      return whole;
+    } else if (digits <= 16) {
+      return whole / 1000;
+    } else {
+      return whole / 1000_000;
+    }
+  }
+
+  private double parseDouble(int start, int end) {
+    // fast path for plain decimals that are exactly representable before a single division.
+    int i = start;
+    boolean negative = false;
+    if (buf[i] == '-' || buf[i] == '+') {
+      negative = buf[i] == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fraction = -1;
+    for (; i < end; i++) {
+      byte b = buf[i];
+      if (b == '.' && fraction < 0) {
+        fraction = 0;
+        continue;
+      }
+      int d = b - '0';
+      if (d < 0 || d > 9 || digits == 15) break;
+      mantissa = mantissa * 10 + d;
+      digits++;
+      if (fraction >= 0) fraction++;
+    }
+    if (i == end && digits > 0 && fraction < POWERS_OF_TEN.length) {
+      double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+      return negative ? -value : value;
+    }
+    try {
+      return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.UTF_8));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value: " +
+          new String(buf, start, end - start, StandardCharsets.UTF_8));
+    }
+  }
+
+  private void growTags() {
+    int size = keyStart.length * 2;
+    keyStart = Arrays.copyOf(keyStart, size);
+    keyEnd = Arrays.copyOf(keyEnd, size);
+    valueStart = Arrays.copyOf(valueStart, size);
+    valueEnd = Arrays.copyOf(valueEnd, size);
+    keyQuoted = Arrays.copyOf(keyQuoted, size);
+    valueQuoted = Arrays.copyOf(valueQuoted, size);
+    pointTags = Arrays.copyOf(pointTags, size);
+  }
+}
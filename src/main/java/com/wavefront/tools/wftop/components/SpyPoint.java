@@ -0,0 +1,61 @@
+package com.wavefront.tools.wftop.components;
+
+import com.google.common.collect.Multimap;
+
+import javax.annotation.Nullable;
+import java.util.Set;
+
+/**
+ * Read-only view of a spied point over the buffer it was decoded from. The same instance is reused
+ * for every point handled by an ingest thread, so a view is only valid for the duration of the
+ * callback it is passed to (the strings it returns can be kept).
+ */
+public interface SpyPoint {
+
+  boolean isAccessed();
+
+  /**
+   * @return Metric name, shared with other points of the same metric when possible.
+   */
+  String getMetric();
+
+  /**
+   * @return Host name, shared with other points of the same host when possible.
+   */
+  String getHost();
+
+  /**
+   * @return 64 bits of the MurmurHash3 (x64 128) of the UTF-8 bytes of the metric name.
+   */
+  long getMetricHash();
+
+  /**
+   * @return 64 bits of the MurmurHash3 (x64 128) of the UTF-8 bytes of the host name.
+   */
+  long getHostHash();
+
+  long getTimestamp();
+
+  double getValue();
+
+  /**
+   * @return Number of point tags (excluding the one giving the host).
+   */
+  int getPointTagCount();
+
+  String getPointTagKey(int index);
+
+  String getPointTagValue(int index);
+
+  /**
+   * @return Value of the first point tag with the given key, null if there is none.
+   */
+  @Nullable
+  String getPointTag(String key);
+
+  /**
+   * @param keys Only include these tag keys, null for all of them.
+   * @return Point tags copied into a multimap.
+   */
+  Multimap<String, String> getPointTags(@Nullable Set<String> keys);
+}
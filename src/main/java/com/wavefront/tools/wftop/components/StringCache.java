@@ -0,0 +1,51 @@
+package com.wavefront.tools.wftop.components;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bounded, direct-mapped cache of strings decoded from UTF-8 bytes, so that names that keep coming
+ * back (metrics, hosts, tag keys and values) are decoded once and shared instead of being allocated
+ * for every point. A miss simply replaces whatever was in the slot. Not thread-safe, each ingest
+ * thread owns its own.
+ */
+class StringCache {
+
+  private final String[] entries;
+  private final int mask;
+
+  /**
+   * @param size Number of slots, a power of two.
+   */
+  StringCache(int size) {
+    if (size < 1 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Cache size must be a power of two");
+    }
+    this.entries = new String[size];
+    this.mask = size - 1;
+  }
+
+  String get(byte[] buf, int start, int end) {
+    int slot = MurmurHash3.murmurhash3_x86_32(buf, start, end - start, 0) & mask;
+    String cached = entries[slot];
+    if (cached != null && matches(cached, buf, start, end)) return cached;
+    String decoded = new String(buf, start, end - start, StandardCharsets.UTF_8);
+    entries[slot] = decoded;
+    return decoded;
+  }
+
+  /**
+   * @return Whether the UTF-8 bytes in the range decode to s (without decoding them when s is ASCII).
+   */
+  static boolean matches(String s, byte[] buf, int start, int end) {
+    int len = s.length();
+    if (len > end - start) return false;
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        return s.equals(new String(buf, start, end - start, StandardCharsets.UTF_8));
+      }
+      if (buf[start + i] != c) return false;
+    }
+    return len == end - start;
+  }
+}
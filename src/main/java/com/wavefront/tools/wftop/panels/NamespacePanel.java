@@ -4,15 +4,18 @@ import com.google.common.annotations.VisibleForTesting;
 import com.googlecode.lanterna.TextColor;
 import com.googlecode.lanterna.gui2.*;
 import com.googlecode.lanterna.gui2.table.Table;
+import com.googlecode.lanterna.gui2.table.TableModel;
 import com.googlecode.lanterna.input.KeyStroke;
 import com.googlecode.lanterna.input.KeyType;
 import com.wavefront.tools.wftop.components.Node;
+import com.wavefront.tools.wftop.components.RecentStats;
 
-import io.dropwizard.metrics5.Meter;
-import io.dropwizard.metrics5.Snapshot;
+import io.dropwizard.metrics5.Metered;
 import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.lang.StringUtils;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -22,6 +25,10 @@ import java.util.*;
  */
 public abstract class NamespacePanel extends Panel {
 
+  private static final int MAX_ROWS = 1001;
+  // rows fetched past the visible ones so scrolling does not wait on a refresh.
+  private static final int SCROLL_AHEAD = 50;
+
   protected final Label globalPPS = new Label("");
   protected final Label connectivityStatus = new Label("");
   protected final Label samplingRate = new Label("");
@@ -34,10 +41,20 @@ public abstract class NamespacePanel extends Panel {
   protected Map<String, Node> labelToNodeMap = new HashMap<>();
   protected int sortIndex = 1;
   protected boolean reverseSort = true;
+  // minutes of recent statistics displayed (see Node#getRecentStats).
+  protected int statsWindow = 1;
   protected Button configBtn, stopStartBtn;
   protected String exportFile = null;
   protected String rootPath = null;
   protected CSVPrinter csvPrinter;
+  // folder last rendered.
+  @Nullable
+  private volatile Node folder = null;
+  // rows of children displayed, grows as the selection moves down.
+  private volatile int rowLimit = MAX_ROWS;
+  private volatile int visibleRows = 0;
+  private String samplingText = "";
+  private String ingestText = "";
 
   public NamespacePanel(SpyConfigurationPanel panel, MultiWindowTextGUI gui) {
     this.setLayoutManager(new BorderLayout());
@@ -58,6 +75,10 @@ public abstract class NamespacePanel extends Panel {
       public Result handleKeyStroke(KeyStroke keyStroke) {
         Result result = super.handleKeyStroke(keyStroke);
         if (result != Result.UNHANDLED) {
+          // fetch the next rows before the selection reaches the last one.
+          if (table.getSelectedRow() >= table.getTableModel().getRowCount() - SCROLL_AHEAD / 2) {
+            showMoreRows(rowLimit + visibleRows + SCROLL_AHEAD);
+          }
           return result;
         }
         if (keyStroke.getKeyType() == KeyType.Home) {
@@ -65,6 +86,7 @@ public abstract class NamespacePanel extends Panel {
           invalidate();
           return Result.HANDLED;
         } else if (keyStroke.getKeyType() == KeyType.End) {
+          showMoreRows(MAX_ROWS);
           table.setSelectedRow(table.getTableModel().getRowCount() - 1);
           invalidate();
           return Result.HANDLED;
@@ -134,23 +156,22 @@ public abstract class NamespacePanel extends Panel {
   }
 
   /**
-   * Compares nodes based on columns.
+   * Read the statistics of a node into a row, called for the children displayed so it should read
+   * each statistic once.
    *
-   * @return Comparison value returned.
-   */
-  protected abstract Comparator<Node> getComparator();
-
-  /**
-   * Add first row (to go up a folder).
+   * @param label  Displayed in the first column.
+   * @param factor Multiply by backend count to accurately display pps/cps.
    */
-  protected abstract void addFirstRow(Node root, double factor, Collection<Node> nodes,
-                                      Snapshot snapshot, boolean takeSnapshot);
+  protected abstract NamespaceRows.Row toRow(Node node, String label, double factor);
 
   /**
-   * Now sort and add the nodes for this folder.
+   * Read the statistic a column sorts on, called for every child on each refresh so it should only
+   * read that one.
+   *
+   * @param column Column other than the first one (which sorts on names).
+   * @return Sort key, 0 for a column without one.
    */
-  protected abstract void addNodes(Node root, double factor, Collection<Node> nodes,
-                                   Snapshot snapshot, String selectedLabel, boolean takeSnapshot);
+  protected abstract double sortKey(Node node, int column);
 
   /**
    * Display global Points per Second (spy on Points) or Creations per Second (spy on Id Creation).
@@ -158,7 +179,7 @@ public abstract class NamespacePanel extends Panel {
    * @param factor Multiply by backend count to accurately display pps/cps.
    * @param rate   Used to get 1m, 5m, 15m intervals.
    */
-  public abstract void setGlobalPPS(double factor, Meter rate);
+  public abstract void setGlobalPPS(double factor, Metered rate);
 
   /**
    * Create CSV file for exporting data.
@@ -194,11 +215,65 @@ public abstract class NamespacePanel extends Panel {
     this.table.getTableModel().setColumnLabel(sortIndex, columnLabel + (reverseSort ? " [↑]" : " [↓]"));
   }
 
+  /**
+   * @param minutes Window of the accessed and range columns, one of {@link RecentStats#MINUTES}.
+   */
+  public void setStatsWindow(int minutes) {
+    this.statsWindow = minutes;
+  }
+
   public void setVisibleRows(int count) {
     this.table.setVisibleRows(count);
+    this.visibleRows = count;
   }
 
+  /**
+   * Read the nodes and display them. Every node is read for the key of the column sorted on, only
+   * the ones displayed are read into rows. Meant to be called away from the GUI thread, which never
+   * reads nodes itself: it is only held up while the rows are swapped in, and changes of order or
+   * of the rows displayed wait for the next call.
+   *
+   * @param takeSnapshot Whether to export the rows too.
+   */
   public void renderNodes(Node root, double factor, Collection<Node> nodes, boolean takeSnapshot) {
+    int sortIndex = this.sortIndex;
+    Node[] children = nodes.toArray(new Node[0]);
+    String[] names = new String[children.length];
+    double[] keys = new double[children.length];
+    for (int i = 0; i < children.length; i++) {
+      names[i] = children[i].getFlattened();
+      if (sortIndex != 0) keys[i] = sortKey(children[i], sortIndex);
+    }
+    // only what is shown gets full statistics, the rest of the folder stays cheap.
+    root.markVisible();
+    NamespaceRows rows = new NamespaceRows(toRow(root, "..", factor), children, names, sortIndex,
+        keys, (node, name) -> {
+          node.markVisible();
+          return toRow(node, StringUtils.abbreviate(name, 50), factor);
+        }); // artificial ".."
+    if (folder != root) {
+      // a different folder, start from the top again.
+      folder = root;
+      rowLimit = visibleRows + SCROLL_AHEAD;
+    }
+    showRows(rows, takeSnapshot);
+  }
+
+  /**
+   * Display more rows from the next refresh on, for when the selection nears the last one displayed.
+   *
+   * @param limit Number of rows of children to display, up to {@link #MAX_ROWS}.
+   */
+  private void showMoreRows(int limit) {
+    // rows past the last child were not there to display.
+    if (table.getTableModel().getRowCount() <= rowLimit || rowLimit >= MAX_ROWS) return;
+    rowLimit = Math.min(limit, MAX_ROWS);
+    if (listener != null) listener.onMoreRows();
+  }
+
+  private void showRows(NamespaceRows rows, boolean takeSnapshot) {
+    // only the rows displayed (and those just past them) are sorted.
+    List<NamespaceRows.Row> sorted = rows.top(Math.min(rowLimit, MAX_ROWS), reverseSort);
     synchronized (table) {
       @Nullable
       String selectedLabel = null;
@@ -206,14 +281,58 @@ public abstract class NamespacePanel extends Panel {
         List<String> selectedRow = table.getTableModel().getRow(table.getSelectedRow());
         selectedLabel = selectedRow.get(0);
       }
-      int count = table.getTableModel().getRowCount();
-      for (int i = 0; i < count; i++) {
-        table.getTableModel().removeRow(0);
-      }
       labelToNodeMap.clear();
-      Snapshot snapshot = root.getLag().getSnapshot();
-      addFirstRow(root, factor, nodes, snapshot, takeSnapshot);
-      addNodes(root, factor, nodes, snapshot, selectedLabel, takeSnapshot);
+      setRow(0, rows.getFirst().getCells());
+      int newLocation = 0;
+      for (int i = 0; i < sorted.size(); i++) {
+        NamespaceRows.Row row = sorted.get(i);
+        if (row.getLabel().equals(selectedLabel)) {
+          newLocation = i + 1;
+        }
+        labelToNodeMap.put(row.getLabel(), row.getNode());
+        setRow(i + 1, row.getCells());
+      }
+      // drop the rows left over from the end, which does not shift the others.
+      for (int i = table.getTableModel().getRowCount() - 1; i > sorted.size(); i--) {
+        table.getTableModel().removeRow(i);
+      }
+      if (table.getSelectedRow() != newLocation) table.setSelectedRow(newLocation);
+    }
+    if (takeSnapshot) {
+      // all of them are exported, without growing the table (rows already read are not read again).
+      exportRow(rootPath, rows.getFirst());
+      for (NamespaceRows.Row row : rows.top(MAX_ROWS, reverseSort)) {
+        exportRow(row.getLabel(), row);
+      }
+    }
+  }
+
+  /**
+   * Update the cells of a row that changed, adding the row if missing. Unchanged cells are left as
+   * they are so the terminal is only redrawn where values moved.
+   */
+  private void setRow(int index, String[] cells) {
+    TableModel<String> model = table.getTableModel();
+    if (index >= model.getRowCount()) {
+      model.addRow(cells);
+      return;
+    }
+    List<String> current = model.getRow(index);
+    for (int column = 0; column < cells.length; column++) {
+      if (!cells[column].equals(current.get(column))) {
+        model.setCell(column, index, cells[column]);
+      }
+    }
+  }
+
+  private void exportRow(String namespace, NamespaceRows.Row row) {
+    String[] cells = row.getCells();
+    cells[0] = namespace;
+    try {
+      csvPrinter.printRecord((Object[]) cells);
+      csvPrinter.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
     }
   }
 
@@ -233,7 +352,20 @@ public abstract class NamespacePanel extends Panel {
   }
 
   public void setSamplingRate(double rate) {
-    this.samplingRate.setText("Sampling: " + (rate * 100) + "%");
+    this.samplingText = "Sampling: " + (rate * 100) + "%";
+    this.samplingRate.setText(samplingText + ingestText);
+  }
+
+  /**
+   * Display how far ingestion is behind the connection.
+   *
+   * @param queued   Lines waiting to be processed.
+   * @param capacity Lines that can be queued before dropping.
+   * @param dropped  Lines dropped so far.
+   */
+  public void setIngestStatus(int queued, int capacity, long dropped) {
+    this.ingestText = " | Queue: " + queued + "/" + capacity + (dropped > 0 ? " | Dropped: " + dropped : "");
+    this.samplingRate.setText(samplingText + ingestText);
   }
 
   public void setConnecting() {
@@ -284,6 +416,11 @@ public abstract class NamespacePanel extends Panel {
 
     void reverseSort();
 
+    /**
+     * More rows are to be displayed, see {@link #renderNodes}.
+     */
+    void onMoreRows();
+
     void selectElement(Node<?> element);
 
     void goUp();
@@ -0,0 +1,158 @@
+package com.wavefront.tools.wftop.panels;
+
+import com.wavefront.tools.wftop.components.Node;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.BiFunction;
+import java.util.stream.Collector;
+import java.util.stream.IntStream;
+
+/**
+ * Children of a {@link NamespacePanel} folder as read on one refresh: the name of each and the key
+ * of the column sorted on, nothing else. Rows (formatted cells) are only read for the children
+ * selected for display, once each, so a refresh costs a key per child plus a row per row shown
+ * (selecting more of them for export does not read the displayed ones again). Built and read on the
+ * refresh thread only, the GUI thread just gets the cells.
+ */
+final class NamespaceRows {
+
+  /**
+   * Number of children above which they are selected from on several threads.
+   */
+  static final int PARALLEL_THRESHOLD = 50_000;
+
+  private final Row first;
+  private final Node[] nodes;
+  private final String[] names;
+  private final int sortIndex;
+  private final double[] keys;
+  private final BiFunction<Node, String, Row> reader;
+  // rows read so far, by index of the child.
+  private final Row[] rows;
+
+  /**
+   * @param first     Row of the parent (to go up a folder), shown first whatever the order.
+   * @param nodes     Children.
+   * @param names     Full name of each child, which the first column sorts on.
+   * @param sortIndex Column the keys are of.
+   * @param keys      Sort key of each child, ignored when sorting on names.
+   * @param reader    Reads the row of a child given its name.
+   */
+  NamespaceRows(Row first, Node[] nodes, String[] names, int sortIndex, double[] keys,
+                BiFunction<Node, String, Row> reader) {
+    this.first = first;
+    this.nodes = nodes;
+    this.names = names;
+    this.sortIndex = sortIndex;
+    this.keys = keys;
+    this.reader = reader;
+    this.rows = new Row[nodes.length];
+  }
+
+  Row getFirst() {
+    return first;
+  }
+
+  /**
+   * Select the first children in sort order without sorting all of them: a heap of at most limit
+   * children is kept while going through them (split across threads with more than
+   * {@link #PARALLEL_THRESHOLD} of them), and only those are sorted and read into rows.
+   *
+   * @param limit   Number of children to select.
+   * @param reverse Whether to sort in descending order.
+   * @return Rows of the first children in a new list, ties keep the order the nodes were given in.
+   */
+  List<Row> top(int limit, boolean reverse) {
+    Comparator<Integer> order = sortIndex == 0 ?
+        (i1, i2) -> names[i1].compareTo(names[i2]) :
+        (i1, i2) -> Double.compare(keys[i1], keys[i2]);
+    if (reverse) order = order.reversed();
+    order = order.thenComparing(Comparator.naturalOrder());
+    IntStream indexes = IntStream.range(0, nodes.length);
+    if (nodes.length > PARALLEL_THRESHOLD) indexes = indexes.parallel();
+    Comparator<Integer> selection = order;
+    List<Integer> selected = indexes.boxed().collect(Collector.of(
+        () -> new Selection(limit, selection), Selection::add, Selection::merge, Selection::sorted));
+    List<Row> top = new ArrayList<>(selected.size());
+    for (int index : selected) {
+      top.add(row(index));
+    }
+    return top;
+  }
+
+  private Row row(int index) {
+    Row row = rows[index];
+    if (row == null) {
+      row = reader.apply(nodes[index], names[index]);
+      rows[index] = row;
+    }
+    return row;
+  }
+
+  /**
+   * First indexes in an order, the last of which sits on top of the heap to be dropped first.
+   */
+  private static final class Selection {
+
+    private final int limit;
+    private final Comparator<Integer> order;
+    private final PriorityQueue<Integer> heap;
+
+    Selection(int limit, Comparator<Integer> order) {
+      this.limit = limit;
+      this.order = order;
+      this.heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, order.reversed());
+    }
+
+    void add(Integer index) {
+      if (limit <= 0) return;
+      if (heap.size() < limit) {
+        heap.add(index);
+      } else if (order.compare(index, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(index);
+      }
+    }
+
+    Selection merge(Selection other) {
+      other.heap.forEach(this::add);
+      return this;
+    }
+
+    List<Integer> sorted() {
+      List<Integer> sorted = new ArrayList<>(heap);
+      sorted.sort(order);
+      return sorted;
+    }
+  }
+
+  static final class Row {
+
+    private final Node node;
+    private final String[] cells;
+
+    /**
+     * @param node  Node the row was read from.
+     * @param cells Displayed cells, the first one being the (abbreviated) label.
+     */
+    Row(Node node, String[] cells) {
+      this.node = node;
+      this.cells = cells;
+    }
+
+    String getLabel() {
+      return cells[0];
+    }
+
+    Node getNode() {
+      return node;
+    }
+
+    String[] getCells() {
+      return cells.clone();
+    }
+  }
+}
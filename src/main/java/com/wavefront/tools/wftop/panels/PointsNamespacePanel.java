@@ -1,13 +1,12 @@
 package com.wavefront.tools.wftop.panels;
 
-import com.google.common.collect.Ordering;
 import com.googlecode.lanterna.gui2.*;
 import com.wavefront.tools.wftop.components.Node;
-import io.dropwizard.metrics5.Meter;
+import com.wavefront.tools.wftop.components.RecentStats;
+import io.dropwizard.metrics5.Metered;
 import io.dropwizard.metrics5.Snapshot;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.lang.StringUtils;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -22,42 +21,7 @@ import java.util.*;
  */
 public class PointsNamespacePanel extends NamespacePanel {
 
-  @Override
-  protected Comparator<Node> getComparator() {
-    return (o1, o2) -> {
-      if (sortIndex == 0) {
-        return o1.getFlattened().compareTo(o2.getFlattened());
-      } else if (sortIndex == 1) {
-        // PPS
-        return Double.compare(o1.getRate().getOneMinuteRate(), o2.getRate().getOneMinuteRate());
-      } else if (sortIndex == 2) {
-        // % accessed
-        return Double.compare((double) o1.getAccessed() / o1.getRate().getCount(),
-            (double) o2.getAccessed() / o2.getRate().getCount());
-      } else if (sortIndex == 3) {
-        // median lag
-        return Double.compare(o1.getLag().getSnapshot().getMedian(), o2.getLag().getSnapshot().getMedian());
-      } else if (sortIndex == 4) {
-        // p75 lag
-        return Double.compare(o1.getLag().getSnapshot().get75thPercentile(),
-            o2.getLag().getSnapshot().get75thPercentile());
-      } else if (sortIndex == 5) {
-        // p99 lag
-        return Double.compare(o1.getLag().getSnapshot().get99thPercentile(),
-            o2.getLag().getSnapshot().get99thPercentile());
-      } else if (sortIndex == 6) {
-        // metric cardinality
-        return Long.compare(o1.getEstimatedMetricCardinality(), o2.getEstimatedMetricCardinality());
-      } else if (sortIndex == 7) {
-        // host cardinality
-        return Long.compare(o1.getEstimatedHostCardinality(), o2.getEstimatedHostCardinality());
-      } else if (sortIndex == 8) {
-        return Double.compare(o1.getRange(), o2.getRange());
-      } else {
-        return 0;
-      }
-    };
-  }
+  private boolean showMemory = false;
 
   public PointsNamespacePanel(SpyConfigurationPanel panel, MultiWindowTextGUI gui) {
     super(panel, gui);
@@ -74,56 +38,76 @@ public class PointsNamespacePanel extends NamespacePanel {
     this.table.getTableModel().insertColumn(8, "Range", null);
   }
 
+  /**
+   * Show the estimated memory held by each namespace's subtree in an extra column (and in exported
+   * data), call before {@link #setExportData}.
+   */
+  public void setShowMemory(boolean showMemory) {
+    if (showMemory == this.showMemory) return;
+    this.showMemory = showMemory;
+    if (showMemory) {
+      this.table.getTableModel().insertColumn(9, "Memory", null);
+    } else {
+      if (sortIndex == 9) setSortIndex(1);
+      this.table.getTableModel().removeColumn(9);
+    }
+  }
+
   @Override
-  protected void addFirstRow(Node root, double factor, Collection<Node> nodes, Snapshot snapshot,
-                             boolean takeSnapshot) {
-    this.table.getTableModel().addRow("..", // artificial ".."
-        (Math.round(factor * root.getRate().getOneMinuteRate()) + "pps"),
-        (Math.round(100.0 * root.getAccessed() / root.getRate().getCount()) + "%"),
+  protected NamespaceRows.Row toRow(Node node, String label, double factor) {
+    RecentStats recent = node.getRecentStats(statsWindow);
+    Snapshot snapshot = node.getLag().getSnapshot();
+    String[] cells = {label,
+        (Math.round(factor * node.getRate().getOneMinuteRate()) + "pps"),
+        (Math.round(100.0 * recent.getAccessedRatio()) + "%"),
         Math.round(snapshot.getMedian()) + "ms",
         Math.round(snapshot.get75thPercentile()) + "ms",
         Math.round(snapshot.get99thPercentile()) + "ms",
-        String.valueOf(root.getEstimatedMetricCardinality()),
-        String.valueOf(root.getEstimatedHostCardinality()),
-        String.valueOf(root.getRange()));
-    if (takeSnapshot) exportData(rootPath, root, factor, snapshot);
+        String.valueOf(node.getEstimatedMetricCardinality()),
+        String.valueOf(node.getEstimatedHostCardinality()),
+        String.valueOf(recent.getRange())};
+    if (showMemory) {
+      cells = Arrays.copyOf(cells, cells.length + 1);
+      cells[cells.length - 1] = formatBytes(node.getEstimatedBytes());
+    }
+    return new NamespaceRows.Row(node, cells);
   }
 
   @Override
-  protected void addNodes(Node root, double factor, Collection<Node> nodes, Snapshot snapshot,
-                          String selectedLabel, boolean takeSnapshot) {
-    Ordering<Node> ordering = Ordering.from(getComparator());
-    if (reverseSort) ordering = ordering.reverse();
-    List<Node> sorted = ordering.sortedCopy(nodes);
-    int num = 0;
-    int newLocation = 0;
-    for (Node node : sorted) {
-      snapshot = node.getLag().getSnapshot();
-      String flattened = StringUtils.abbreviate(node.getFlattened(), 50);
-      if (flattened.equals(selectedLabel)) {
-        newLocation = num + 1;
-      }
-      labelToNodeMap.put(flattened, node);
-      table.getTableModel().addRow(flattened,
-          (Math.round(factor * node.getRate().getOneMinuteRate()) + "pps"),
-          (Math.round(100.0 * node.getAccessed() / node.getRate().getCount()) + "%"),
-          Math.round(snapshot.getMedian()) + "ms",
-          Math.round(snapshot.get75thPercentile()) + "ms",
-          Math.round(snapshot.get99thPercentile()) + "ms",
-          String.valueOf(node.getEstimatedMetricCardinality()),
-          String.valueOf(node.getEstimatedHostCardinality()),
-          String.valueOf(node.getRange()));
-      if (takeSnapshot) {
-        exportData(flattened, node, factor, snapshot);
-      }
-      num++;
-      if (num > 1000) break;
+  protected double sortKey(Node node, int column) {
+    if (column == 1) {
+      // PPS
+      return node.getRate().getOneMinuteRate();
+    } else if (column == 2) {
+      // % accessed
+      return node.getRecentStats(statsWindow).getAccessedRatio();
+    } else if (column == 3) {
+      // median lag
+      return node.getLag().getSnapshot().getMedian();
+    } else if (column == 4) {
+      // p75 lag
+      return node.getLag().getSnapshot().get75thPercentile();
+    } else if (column == 5) {
+      // p99 lag
+      return node.getLag().getSnapshot().get99thPercentile();
+    } else if (column == 6) {
+      // metric cardinality
+      return node.getEstimatedMetricCardinality();
+    } else if (column == 7) {
+      // host cardinality
+      return node.getEstimatedHostCardinality();
+    } else if (column == 8) {
+      return node.getRecentStats(statsWindow).getRange();
+    } else if (column == 9 && showMemory) {
+      // estimated memory
+      return node.getEstimatedBytes();
+    } else {
+      return 0;
     }
-    table.setSelectedRow(newLocation);
   }
 
   @Override
-  public void setGlobalPPS(double factor, Meter rate) {
+  public void setGlobalPPS(double factor, Metered rate) {
     this.globalPPS.setText("Est. PPS: 1m " +
         Math.round(factor * rate.getOneMinuteRate()) + "pps | 5m " +
         Math.round(factor * rate.getFiveMinuteRate()) + "pps | 15m " +
@@ -134,28 +118,21 @@ public class PointsNamespacePanel extends NamespacePanel {
   public void setUpCSVWriter() {
     try {
       BufferedWriter bufferedWriter = Files.newBufferedWriter(Paths.get(exportFile));
-      csvPrinter = new CSVPrinter(bufferedWriter, CSVFormat.DEFAULT.withHeader(
-          "Namespace", "PPS", "% Acc.", "P50 Lag", "P75 Lag", "P99 Lag", "Num Metrics", "Num " +
-              "Hosts", "Range"));
+      String[] header = {"Namespace", "PPS", "% Acc.", "P50 Lag", "P75 Lag", "P99 Lag",
+          "Num Metrics", "Num Hosts", "Range"};
+      if (showMemory) {
+        header = Arrays.copyOf(header, header.length + 1);
+        header[header.length - 1] = "Memory";
+      }
+      csvPrinter = new CSVPrinter(bufferedWriter, CSVFormat.DEFAULT.withHeader(header));
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
-  private void exportData(String namespace, Node node, double factor, Snapshot snapshot) {
-    try {
-      csvPrinter.printRecord(namespace,
-          Math.round(factor * node.getRate().getOneMinuteRate()) + "pps",
-          Math.round(100.0 * node.getAccessed() / node.getRate().getCount()) + "%",
-          Math.round(snapshot.getMedian()) + "ms",
-          Math.round(snapshot.get75thPercentile()) + "ms",
-          Math.round(snapshot.get99thPercentile()) + "ms",
-          String.valueOf(node.getEstimatedMetricCardinality()),
-          String.valueOf(node.getEstimatedHostCardinality()),
-          String.valueOf(node.getRange()));
-      csvPrinter.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  private static String formatBytes(long bytes) {
+    if (bytes < 1024) return bytes + "B";
+    if (bytes < 1024 * 1024) return Math.round(bytes / 1024.0) + "KB";
+    return String.format("%.1fMB", bytes / (1024.0 * 1024));
   }
 }
@@ -0,0 +1,153 @@
+package com.wavefront.tools.wftop.panels;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.googlecode.lanterna.gui2.TextGUI;
+import com.googlecode.lanterna.gui2.TextGUIThread;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Daemon thread that refreshes the display at an interval adapted to what a frame costs: the time to
+ * read the nodes into rows, wait for the GUI thread, and have it draw the screen and flush it to the
+ * terminal (see {@link #afterScreenUpdate}). The interval is
+ * kept at {@link #COST_SHARE} times that cost (within {@link #MIN_INTERVAL_MILLIS} and
+ * {@link #MAX_INTERVAL_MILLIS}) so the display never takes more than a small share of a core from
+ * ingestion. A frame due while the previous one has yet to reach the terminal is skipped rather
+ * than queued.
+ */
+public class RefreshScheduler {
+
+  private static final Logger log = Logger.getLogger(RefreshScheduler.class.getCanonicalName());
+
+  static final long MIN_INTERVAL_MILLIS = 500;
+  static final long MAX_INTERVAL_MILLIS = 5_000;
+  /**
+   * Interval between frames relative to their cost.
+   */
+  static final int COST_SHARE = 10;
+
+  private final Runnable refresh;
+  private final Consumer<Runnable> presenter;
+  private final Thread refresher;
+  private volatile boolean running = true;
+  private volatile boolean requested = false;
+  // whether the last frame has yet to reach the terminal.
+  private volatile boolean presenting = false;
+  private volatile long intervalMillis = 1_000;
+  private volatile long skippedFrames = 0;
+  // System#nanoTime of the next frame.
+  private volatile long nextFrame;
+
+  /**
+   * @param refresh   Reads the nodes into the panel, called on the scheduler's thread.
+   * @param presenter Runs a task once the frame is on the terminal, e.g.
+   *                  {@link #afterScreenUpdate}.
+   */
+  public RefreshScheduler(Runnable refresh, Consumer<Runnable> presenter) {
+    this.refresh = refresh;
+    this.presenter = presenter;
+    this.refresher = new Thread(this::work, "wftop-refresh");
+    refresher.setDaemon(true);
+    refresher.setPriority(Thread.MIN_PRIORITY);
+    refresher.start();
+  }
+
+  /**
+   * Presenter that has the GUI thread draw the frame and flush it to the terminal, then run the
+   * task. Tasks queued with {@link TextGUIThread#invokeLater} run before the GUI thread updates the
+   * screen, so it is updated here rather than left to it.
+   */
+  public static Consumer<Runnable> afterScreenUpdate(TextGUI gui) {
+    return task -> gui.getGUIThread().invokeLater(() -> {
+      try {
+        if (gui.isPendingUpdate()) gui.updateScreen();
+      } catch (IOException ex) {
+        log.log(Level.WARNING, "Failed to update the screen", ex);
+      }
+      task.run();
+    });
+  }
+
+  /**
+   * Refresh as soon as the previous frame reached the terminal, e.g. after navigating.
+   */
+  public void requestRefresh() {
+    requested = true;
+    LockSupport.unpark(refresher);
+  }
+
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * @return Frames skipped because the previous one had yet to reach the terminal.
+   */
+  public long getSkippedFrames() {
+    return skippedFrames;
+  }
+
+  public void shutdown() {
+    running = false;
+    refresher.interrupt();
+  }
+
+  /**
+   * @param intervalMillis Current interval.
+   * @param costNanos      Cost of the last frame.
+   * @return Interval until the next frame, up at once when frames get costlier and halfway down
+   * when they get cheaper.
+   */
+  @VisibleForTesting
+  static long nextInterval(long intervalMillis, long costNanos) {
+    long target = TimeUnit.NANOSECONDS.toMillis(costNanos) * COST_SHARE;
+    if (target < intervalMillis) target = (intervalMillis + target) / 2;
+    return Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_INTERVAL_MILLIS, target));
+  }
+
+  private void work() {
+    nextFrame = System.nanoTime();
+    while (running) {
+      long now = System.nanoTime();
+      if (presenting) {
+        if (!requested && now - nextFrame >= 0) {
+          // the terminal has not caught up, drop this frame rather than queue it.
+          skippedFrames++;
+          nextFrame = now + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        }
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+      } else if (!requested && nextFrame - now > 0) {
+        LockSupport.parkNanos(this, nextFrame - now);
+      } else {
+        requested = false;
+        long start = System.nanoTime();
+        nextFrame = start + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        try {
+          refresh.run();
+        } catch (Exception ex) {
+          log.log(Level.WARNING, "Failed to refresh the display", ex);
+        }
+        presenting = true;
+        try {
+          presenter.accept(() -> presented(start));
+        } catch (IllegalStateException ex) {
+          // the GUI thread is gone, nothing to wait for.
+          presented(start);
+        }
+      }
+      if (Thread.interrupted()) return;
+    }
+  }
+
+  private void presented(long start) {
+    intervalMillis = nextInterval(intervalMillis, System.nanoTime() - start);
+    nextFrame = start + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    presenting = false;
+    LockSupport.unpark(refresher);
+  }
+}
@@ -22,6 +22,7 @@ public class SpyConfigurationPanel extends BasicWindow {
   private final TextBox maxDepthTB;
   private final TextBox topLevelDepthTB;
   private final TextBox maxChildrenTB;
+  private final TextBox coalesceWindowTB;
   private final Label groupLabel = new Label("Group By: ");
   private final Label analysisLabel = new Label("Analysis Dimension:");
   private final Label typeLabel = new Label("Type: ");
@@ -41,6 +42,7 @@ public class SpyConfigurationPanel extends BasicWindow {
   private int startMaxDepth;
   private int startTopLevelDepth;
   private int startMaxChildren;
+  private long startCoalesceWindow;
   private boolean startOnPoint;
   private boolean spyOnPoint = true;
 
@@ -99,6 +101,11 @@ public class SpyConfigurationPanel extends BasicWindow {
     this.maxChildrenTB.setValidationPattern(Pattern.compile("[0-9]+"));
     form.addComponent(maxChildrenTB);
 
+    form.addComponent(new Label("Coalesce Window (ms):"));
+    this.coalesceWindowTB = new TextBox(new TerminalSize(10, 1));
+    this.coalesceWindowTB.setValidationPattern(Pattern.compile("[0-9]+"));
+    form.addComponent(coalesceWindowTB);
+
     form.addComponent(analysisLabel);
     dimensionRadioBL.addItem("Metric");
     dimensionRadioBL.addItem("Host");
@@ -209,6 +216,13 @@ public class SpyConfigurationPanel extends BasicWindow {
               setTitle("Invalid Input").build().showDialog(gui);
           return;
         }
+        try {
+          Long.parseLong(coalesceWindowTB.getText());
+        } catch (NumberFormatException ex) {
+          new MessageDialogBuilder().setText("Invalid coalesce window, must be an integer").
+              setTitle("Invalid Input").build().showDialog(gui);
+          return;
+        }
         panel.listener.onProceed(panel);
       }
       gui.removeWindow(this);
@@ -262,6 +276,7 @@ public class SpyConfigurationPanel extends BasicWindow {
     startMaxDepth = getMaxDepth();
     startTopLevelDepth = getTopLevelDepth();
     startMaxChildren = getMaxChildren();
+    startCoalesceWindow = getCoalesceWindow();
   }
 
   /**
@@ -274,6 +289,7 @@ public class SpyConfigurationPanel extends BasicWindow {
     setMaxDepth(startMaxDepth);
     setTopLevelDepth(startTopLevelDepth);
     setMaxChildren(startMaxChildren);
+    setCoalesceWindow(startCoalesceWindow);
     spyRadioBL.setCheckedItemIndex((startOnPoint) ? 0 : 1);
     if (startOnPoint) {
       //Started on Point but currently was on ID screen
@@ -324,6 +340,10 @@ public class SpyConfigurationPanel extends BasicWindow {
     return Integer.parseInt(maxChildrenTB.getText());
   }
 
+  public long getCoalesceWindow() {
+    return Long.parseLong(coalesceWindowTB.getText());
+  }
+
   public Dimension getDimension() {
     switch (dimensionRadioBL.getCheckedItem()) {
       case "Host":
@@ -421,6 +441,10 @@ public class SpyConfigurationPanel extends BasicWindow {
     this.maxChildrenTB.setText(String.valueOf(maxChildren));
   }
 
+  public void setCoalesceWindow(long windowMillis) {
+    this.coalesceWindowTB.setText(String.valueOf(windowMillis));
+  }
+
   public boolean getSpyOnPoint() {
     return this.spyOnPoint;
   }
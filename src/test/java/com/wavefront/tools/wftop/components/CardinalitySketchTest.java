@@ -0,0 +1,124 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.agkn.hll.HLL;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test for {@link CardinalitySketch}
+ */
+public class CardinalitySketchTest {
+
+  @Test
+  public void testSlabMatchesHeap() {
+    NodeSlab slab = new NodeSlab();
+    for (int count : new int[]{0, 1, 5, 640, 641, 3000, 200_000}) {
+      CardinalitySketch heap = CardinalitySketch.create(null, 13, 5);
+      CardinalitySketch offHeap = CardinalitySketch.create(slab, 13, 5);
+      Random random = new Random(count);
+      for (int i = 0; i < count; i++) {
+        long hash = random.nextLong();
+        heap.addRaw(hash);
+        offHeap.addRaw(hash);
+        // repeats don't count.
+        if (i % 3 == 0) offHeap.addRaw(hash);
+      }
+      assertEquals("count " + count, heap.cardinality(), offHeap.cardinality());
+      assertEquals("count " + count, heap.cardinality(), offHeap.toHLL().cardinality());
+    }
+  }
+
+  /**
+   * Cached and incrementally kept estimates against ones computed from scratch.
+   */
+  @Test
+  public void testEstimatesFollowChanges() {
+    NodeSlab slab = new NodeSlab();
+    AtomicLong clock = new AtomicLong();
+    for (CardinalitySketch sketch : new CardinalitySketch[]{
+        CardinalitySketch.create(null, 11, 5, clock::get), CardinalitySketch.create(slab, 11, 5)}) {
+      Random random = new Random(7);
+      for (int round = 0; round < 3; round++) {
+        for (int i = 0; i < 20_000; i++) {
+          sketch.addRaw(random.nextLong());
+          if (i % 1_000 == 0) {
+            clock.addAndGet(CardinalitySketch.CACHE_MILLIS + 1);
+            assertEquals(sketch.toHLL().cardinality(), sketch.cardinality());
+          }
+        }
+        clock.addAndGet(CardinalitySketch.CACHE_MILLIS + 1);
+        long estimate = sketch.cardinality();
+        assertEquals(sketch.toHLL().cardinality(), estimate);
+        assertEquals(20_000, estimate, 20_000 * 0.05);
+        sketch.clear();
+        assertEquals(0, sketch.cardinality());
+      }
+    }
+  }
+
+  @Test
+  public void testDenseHeapEstimatesAreCached() {
+    AtomicLong clock = new AtomicLong();
+    CardinalitySketch sketch = CardinalitySketch.create(null, 11, 5, clock::get);
+    Random random = new Random(11);
+    for (int i = 0; i < 10_000; i++) {
+      sketch.addRaw(random.nextLong());
+    }
+    long estimate = sketch.cardinality();
+    for (int i = 0; i < 10_000; i++) {
+      sketch.addRaw(random.nextLong());
+    }
+    clock.addAndGet(CardinalitySketch.CACHE_MILLIS);
+    assertEquals(estimate, sketch.cardinality());
+    clock.incrementAndGet();
+    assertEquals(sketch.toHLL().cardinality(), sketch.cardinality());
+    assertEquals(20_000, sketch.cardinality(), 20_000 * 0.05);
+  }
+
+  @Test
+  public void testReleasedSlabRecordsAreReused() {
+    NodeSlab slab = new NodeSlab();
+    CardinalitySketch released = CardinalitySketch.create(slab, 11, 5);
+    long allocated = slab.getAllocatedBytes();
+    Random random = new Random(3);
+    for (int i = 0; i < 5_000; i++) {
+      released.addRaw(random.nextLong());
+    }
+    released.release();
+    assertEquals(0, slab.getAllocatedBytes());
+    // values are ignored once released.
+    released.addRaw(random.nextLong());
+    assertEquals(0, released.cardinality());
+
+    CardinalitySketch reused = CardinalitySketch.create(slab, 11, 5);
+    assertEquals(allocated, slab.getAllocatedBytes());
+    assertEquals(0, reused.cardinality());
+    reused.addRaw(1);
+    assertEquals(1, reused.cardinality());
+    assertEquals(1, reused.toHLL().cardinality());
+  }
+
+  @Test
+  public void testSlabUnion() {
+    NodeSlab slab = new NodeSlab();
+    CardinalitySketch small = CardinalitySketch.create(slab, 11, 5);
+    CardinalitySketch large = CardinalitySketch.create(slab, 11, 5);
+    HLL expected = new HLL(11, 5);
+    Random random = new Random(42);
+    for (int i = 0; i < 50_000; i++) {
+      long hash = random.nextLong();
+      (i % 100 == 0 ? small : large).addRaw(hash);
+      expected.addRaw(hash);
+    }
+    small.addRaw(new long[]{0, 0}, 2);
+    expected.addRaw(0);
+    HLL union = MergedNode.union(null, small.toHLL());
+    MergedNode.union(union, large.toHLL());
+    assertEquals(expected.cardinality(), union.cardinality());
+  }
+}
@@ -0,0 +1,102 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.dropwizard.metrics5.Snapshot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link LagSketch}
+ */
+public class LagSketchTest {
+
+  @Test
+  public void testBuckets() {
+    for (long lag = 0; lag < 100_000; lag++) {
+      int bucket = LagSketch.bucket(lag);
+      assertTrue(LagSketch.lowerBound(bucket) <= lag);
+      assertTrue(LagSketch.upperBound(bucket) >= lag);
+      if (lag > 0) {
+        int previous = LagSketch.bucket(lag - 1);
+        assertTrue(bucket == previous || bucket == previous + 1);
+      }
+    }
+    assertEquals(0, LagSketch.bucket(-5));
+  }
+
+  @Test
+  public void testQuantiles() {
+    LagSketch sketch = new LagSketch();
+    Random random = new Random(7);
+    long[] lags = new long[10_000];
+    for (int i = 0; i < lags.length; i++) {
+      lags[i] = (long) Math.abs(random.nextGaussian() * 5_000);
+      sketch.update(lags[i]);
+    }
+    Arrays.sort(lags);
+    Snapshot snapshot = sketch.getSnapshot();
+    assertEquals(lags.length, snapshot.size());
+    assertEquals(lags[0], snapshot.getMin());
+    assertEquals(lags[lags.length - 1], snapshot.getMax());
+    for (double quantile : new double[]{0.5, 0.75, 0.99}) {
+      double exact = lags[(int) Math.ceil(quantile * lags.length) - 1];
+      assertEquals(exact, snapshot.getValue(quantile), exact * 0.07);
+    }
+    // unchanged until the next update.
+    assertSame(snapshot, sketch.getSnapshot());
+    sketch.update(1);
+    assertEquals(lags.length + 1, sketch.getSnapshot().size());
+  }
+
+  @Test
+  public void testWindows() {
+    AtomicLong now = new AtomicLong(LagSketch.WINDOW_MILLIS * 100);
+    LagSketch sketch = new LagSketch(now::get);
+    sketch.update(10_000);
+    now.addAndGet(LagSketch.WINDOW_MILLIS);
+    sketch.update(10);
+    assertEquals(2, sketch.getSnapshot().size());
+    assertEquals(10_000, sketch.getSnapshot().getMax());
+
+    // the first window expires, the second one is still live.
+    now.addAndGet(LagSketch.WINDOW_MILLIS * (LagSketch.WINDOWS - 1));
+    assertEquals(1, sketch.getSnapshot().size());
+    assertEquals(10, sketch.getSnapshot().getMax());
+    now.addAndGet(LagSketch.WINDOW_MILLIS);
+    assertEquals(0, sketch.getSnapshot().size());
+    assertEquals(0, sketch.getSnapshot().getMedian(), 0);
+    assertEquals(2, sketch.getTotalCount());
+    assertEquals(10_010, sketch.getTotalSum());
+  }
+
+  @Test
+  public void testMerge() {
+    AtomicLong now = new AtomicLong(LagSketch.WINDOW_MILLIS * 100);
+    LagSketch all = new LagSketch(now::get);
+    LagSketch even = new LagSketch(now::get);
+    LagSketch odd = new LagSketch(now::get);
+    for (int i = 0; i < 1000; i++) {
+      if (i % 100 == 0) now.addAndGet(LagSketch.WINDOW_MILLIS);
+      all.update(i);
+      (i % 2 == 0 ? even : odd).update(i);
+    }
+    LagSketch merged = new LagSketch(now::get);
+    merged.merge(even);
+    merged.merge(odd);
+    assertEquals(all.getTotalCount(), merged.getTotalCount());
+    Snapshot expected = all.getSnapshot();
+    Snapshot actual = merged.getSnapshot();
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected.getMedian(), actual.getMedian(), 0);
+    assertEquals(expected.get99thPercentile(), actual.get99thPercentile(), 0);
+    assertEquals(expected.getMean(), actual.getMean(), 1e-9);
+    assertEquals(expected.getStdDev(), actual.getStdDev(), 1e-6);
+  }
+}
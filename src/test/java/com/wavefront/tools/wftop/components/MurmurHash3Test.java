@@ -0,0 +1,36 @@
+package com.wavefront.tools.wftop.components;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test for {@link MurmurHash3}
+ */
+public class MurmurHash3Test {
+
+  @Test
+  public void testCharsHashLikeUtf8Bytes() {
+    StringBuilder sb = new StringBuilder();
+    for (int len = 0; len < 40; len++) {
+      assertSameHash(sb.toString());
+      assertSameHash(sb + "\u00e9");
+      assertSameHash("\ud83d\ude00" + sb);
+      sb.append((char) ('a' + len % 26));
+    }
+    // unpaired surrogates are encoded as '?'.
+    assertSameHash("metric\uD83D");
+  }
+
+  private static void assertSameHash(String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    MurmurHash3.LongPair expected = new MurmurHash3.LongPair();
+    MurmurHash3.murmurhash3_x64_128(bytes, 0, bytes.length, 0, expected);
+    MurmurHash3.LongPair actual = new MurmurHash3.LongPair();
+    MurmurHash3.murmurhash3_x64_128(s, 0, s.length(), 0, actual);
+    assertEquals(s, expected.val1, actual.val1);
+    assertEquals(s, expected.val2, actual.val2);
+  }
+}
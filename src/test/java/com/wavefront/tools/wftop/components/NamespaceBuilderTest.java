@@ -1,6 +1,12 @@
 package com.wavefront.tools.wftop.components;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.Iterables;
 
@@ -8,7 +14,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Test for {@link NamespaceBuilder}
@@ -136,6 +145,20 @@ public class NamespaceBuilderTest {
     assertEquals("noFlat.", testNamespaceBuilder.getRoot().getNodes().get("noFlat.").getFlattened());
   }
 
+  @Test
+  public void testGetFlattened_chainChanges() {
+    testNamespaceBuilder.accept("a.b.", "hostname", "a.b.", 0, 0, false, true);
+    NamespaceNode node = testNamespaceBuilder.getRoot().getNodes().get("a.");
+    assertEquals("a.b.", node.getFlattened());
+    assertSame(node.getFlattened(), node.getFlattened());
+    testNamespaceBuilder.accept("a.b.c.", "hostname", "a.b.c.", 0, 0, false, true);
+    assertEquals("a.b.c.", node.getFlattened());
+    testNamespaceBuilder.accept("a.b.d.", "hostname", "a.b.d.", 0, 0, false, true);
+    assertEquals("a.b.", node.getFlattened());
+    testNamespaceBuilder.accept("a.e.", "hostname", "a.e.", 0, 0, false, true);
+    assertEquals("a.", node.getFlattened());
+  }
+
   @Test
   public void testTopLevelFolderDepth1() {
     String nodeString = "sldb.test.to.exceed.limit";
@@ -146,4 +169,398 @@ public class NamespaceBuilderTest {
     assertEquals(1, testNamespaceBuilder.getRoot().getNodes().get("sldb.test.to.").getNodes().size());
     assertTrue(testNamespaceBuilder.getRoot().getNodes().get("sldb.test.to.").getNodes().containsKey("exceed."));
   }
+
+  /**
+   * Repeated inputs reuse their resolved path, which must not outlive configuration changes.
+   */
+  @Test
+  public void testAccept_cachedPath() {
+    String nodeString = "sldb.test-to.exceed";
+    testNamespaceBuilder.accept(nodeString, "hostname", nodeString, 0, 0, false, true);
+    testNamespaceBuilder.accept(nodeString, "hostname", nodeString, 0, 0, false, true);
+    NamespaceNode leaf = testNamespaceBuilder.getRoot().getNodes().get("sldb.").getNodes().get("test-").
+        getNodes().get("to.").getNodes().get("exceed");
+    assertEquals(2, leaf.getRate().getCount());
+    assertEquals(2, testNamespaceBuilder.getRoot().getRate().getCount());
+
+    testNamespaceBuilder.setMaxDepth(1);
+    testNamespaceBuilder.accept(nodeString, "hostname", nodeString, 0, 0, false, true);
+    assertEquals(2, leaf.getRate().getCount());
+    assertEquals(3, testNamespaceBuilder.getRoot().getNodes().get("sldb.").getRate().getCount());
+
+    testNamespaceBuilder.setMaxDepth(10);
+    testNamespaceBuilder.setTopLevelDepth(2);
+    testNamespaceBuilder.accept(nodeString, "hostname", nodeString, 0, 0, false, true);
+    assertTrue(testNamespaceBuilder.getRoot().getNodes().containsKey("sldb.test-"));
+
+    testNamespaceBuilder.setTopLevelDepth(1);
+    testNamespaceBuilder.setSeparatorCharacters(".");
+    testNamespaceBuilder.accept(nodeString, "hostname", nodeString, 0, 0, false, true);
+    assertEquals(1, testNamespaceBuilder.getRoot().getRate().getCount());
+    assertTrue(testNamespaceBuilder.getRoot().getNodes().get("sldb.").getNodes().containsKey("test-to."));
+
+    testNamespaceBuilder.reset();
+    testNamespaceBuilder.accept(nodeString, "hostname", nodeString, 0, 0, false, true);
+    assertEquals(1, testNamespaceBuilder.getRoot().getRate().getCount());
+
+    // a node that fills up stops points, even those for a path resolved before.
+    testNamespaceBuilder.setMaxChildren(2);
+    testNamespaceBuilder.accept("other.metric", "hostname", "other.metric", 0, 0, false, true);
+    testNamespaceBuilder.accept(nodeString, "hostname", nodeString, 0, 0, false, true);
+    assertEquals(3, testNamespaceBuilder.getRoot().getRate().getCount());
+    assertEquals(1, testNamespaceBuilder.getRoot().getNodes().get("sldb.").getRate().getCount());
+  }
+
+  /**
+   * Children move through every container as they grow, segments are shared across subtrees.
+   */
+  @Test
+  public void testAccept_manyChildren() {
+    for (int i = 0; i < 100; i++) {
+      String metric = "parent" + (i % 2) + ".child" + i;
+      testNamespaceBuilder.accept(metric, "hostname", metric, 0, 0, false, true);
+      Map<String, NamespaceNode> children =
+          testNamespaceBuilder.getRoot().getNodes().get("parent" + (i % 2) + ".").getNodes();
+      assertEquals(i / 2 + 1, children.size());
+      for (int j = i % 2; j <= i; j += 2) {
+        assertEquals("child" + j, children.get("child" + j).getValue());
+      }
+      assertEquals(null, children.get("child" + (i + 1)));
+    }
+    NamespaceNode parent = testNamespaceBuilder.getRoot().getNodes().get("parent0.");
+    assertEquals(50, parent.getNodes().values().size());
+    for (Map.Entry<String, NamespaceNode> entry : parent.getNodes().entrySet()) {
+      assertEquals(entry.getKey(), entry.getValue().getValue());
+    }
+    testNamespaceBuilder.accept("parent1.child0", "hostname", "parent1.child0", 0, 0, false, true);
+    assertSame(parent.getNodes().get("child0").getValue(),
+        testNamespaceBuilder.getRoot().getNodes().get("parent1.").getNodes().get("child0").getValue());
+  }
+
+  /**
+   * Nodes answer exactly while cold and keep their statistics when promoted.
+   */
+  @Test
+  public void testAccept_tieredStats() {
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < NodeStats.PROMOTE_AFTER - 1; i++) {
+      testNamespaceBuilder.accept("busy.metric" + (i % 3), "host" + (i % 5), "busy.metric" + (i % 3),
+          now, i, i % 2 == 0, true);
+    }
+    testNamespaceBuilder.accept("quiet.metric", "hostname", "quiet.metric", now, 1, true, true);
+    NamespaceNode busy = testNamespaceBuilder.getRoot().getNodes().get("busy.");
+    NamespaceNode quiet = testNamespaceBuilder.getRoot().getNodes().get("quiet.");
+    assertTrue(testNamespaceBuilder.getRoot().stats.isHot());
+    assertFalse(busy.stats.isHot());
+    assertEquals(NodeStats.PROMOTE_AFTER - 1, busy.getRate().getCount());
+    assertEquals(NodeStats.PROMOTE_AFTER - 1, busy.getLag().getCount());
+    assertEquals(5, busy.getEstimatedHostCardinality());
+    assertEquals(3, busy.getEstimatedMetricCardinality());
+    assertEquals(NodeStats.PROMOTE_AFTER / 2, busy.getAccessed());
+
+    testNamespaceBuilder.accept("busy.metric0", "host0", "busy.metric0", now, 0, false, true);
+    assertTrue(busy.stats.isHot());
+    assertFalse(quiet.stats.isHot());
+    assertEquals(NodeStats.PROMOTE_AFTER, busy.getRate().getCount());
+    assertEquals(NodeStats.PROMOTE_AFTER, busy.getLag().getCount());
+    assertEquals(5, busy.getEstimatedHostCardinality());
+    assertEquals(3, busy.getEstimatedMetricCardinality());
+
+    // listing children leaves them as they are, showing them promotes them.
+    assertEquals(2, testNamespaceBuilder.getRoot().getNodes().values().size());
+    assertFalse(quiet.stats.isHot());
+    quiet.markVisible();
+    assertTrue(quiet.stats.isHot());
+    assertEquals(1, quiet.getRate().getCount());
+    assertEquals(1, quiet.getLag().getCount());
+  }
+
+  @Test
+  public void testSetCardinalityPrecision() {
+    NamespaceBuilder builder = new NamespaceBuilder();
+    builder.setMaxDepth(10);
+    builder.setCardinalityPrecision(12, 4);
+    builder.accept("a.b.c.d.metric", "hostname", "a.b.c.d.metric", System.currentTimeMillis(), 1,
+        false, true);
+    NamespaceNode a = builder.getRoot().getNodes().get("a.");
+    NamespaceNode d = a.getNodes().get("b.").getNodes().get("c.").getNodes().get("d.");
+    assertEquals(12, builder.getRoot().stats.log2m);
+    assertEquals(4, builder.getRoot().stats.regwidth);
+    assertEquals(11, a.stats.log2m);
+    assertEquals(NodeStats.MIN_LOG2M, d.stats.log2m);
+    assertEquals(4, d.stats.regwidth);
+    assertEquals(1, d.getEstimatedHostCardinality());
+
+    // sketches are unioned across depths when rolling up.
+    builder.setRollUp(true);
+    builder.accept("a.b.c.d.metric", "hostname", "a.b.c.d.metric", System.currentTimeMillis(), 1,
+        false, true);
+    d = builder.getRoot().getNodes().get("a.").getNodes().get("b.").getNodes().get("c.").
+        getNodes().get("d.");
+    assertEquals(12, d.stats.log2m);
+
+    try {
+      builder.setCardinalityPrecision(3, 4);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(12, builder.getRoot().stats.log2m);
+  }
+
+  @Test
+  public void testEvictIdle() throws InterruptedException {
+    testNamespaceBuilder.setMaxChildren(3);
+    for (int i = 0; i < 3; i++) {
+      testNamespaceBuilder.accept("app.deploy" + i, "hostname", "app.deploy" + i, 0, 0, false, true);
+    }
+    testNamespaceBuilder.accept("burst.metric", "hostname", "burst.metric", 0, 0, false, true);
+    Thread.sleep(5);
+    long idleSince = System.currentTimeMillis();
+    Thread.sleep(5);
+    testNamespaceBuilder.accept("live.metric", "hostname", "live.metric", 0, 0, false, true);
+    // all top-level slots are taken.
+    testNamespaceBuilder.accept("app.deploy3", "hostname", "app.deploy3", 0, 0, false, true);
+    NamespaceNode root = testNamespaceBuilder.getRoot();
+    assertTrue(root.isLimited());
+    assertEquals(6, root.getRate().getCount());
+
+    // whole idle subtrees go at once.
+    assertEquals(2, testNamespaceBuilder.evictIdleSince(idleSince));
+    assertEquals(1, root.getNodes().size());
+    assertTrue(root.getNodes().containsKey("live."));
+    // the root already counted the evicted namespaces' points.
+    assertEquals(6, root.getRate().getCount());
+    assertFalse(root.isLimited());
+    testNamespaceBuilder.accept("app.deploy3", "hostname", "app.deploy3", 0, 0, false, true);
+    assertTrue(root.getNodes().get("app.").getNodes().containsKey("deploy3"));
+
+    assertEquals(0, testNamespaceBuilder.evictIdleSince(idleSince));
+  }
+
+  @Test
+  public void testEvictIdle_releasesSegmentsAndRecords() {
+    NamespaceBuilder offHeap = new NamespaceBuilder();
+    offHeap.setOffHeap(true);
+    NamespaceNode root = offHeap.getRoot();
+    long rootBytes = root.stats.slab.getAllocatedBytes();
+    int rootSegments = root.dictionary.size();
+    for (int i = 0; i < 100; i++) {
+      String metric = "deploy" + i + ".metric";
+      for (int j = 0; j < NodeStats.PROMOTE_AFTER; j++) {
+        offHeap.accept(metric, "host" + j, metric, 0, 0, false, true);
+      }
+    }
+    long allocated = root.stats.slab.getAllocatedBytes();
+    assertEquals(rootSegments + 101, root.dictionary.size());
+
+    assertEquals(100, offHeap.evictIdleSince(Long.MAX_VALUE));
+    assertEquals(rootSegments, root.dictionary.size());
+    assertEquals(rootBytes, root.stats.slab.getAllocatedBytes());
+
+    // namespaces that come back start from scratch, in the records of the evicted ones.
+    for (int j = 0; j < NodeStats.PROMOTE_AFTER; j++) {
+      offHeap.accept("deploy0.metric", "host", "deploy0.metric", 0, 0, false, true);
+    }
+    NamespaceNode deploy = root.getNodes().get("deploy0.");
+    assertEquals(NodeStats.PROMOTE_AFTER, deploy.getRate().getCount());
+    assertEquals(1, deploy.getEstimatedHostCardinality());
+    assertTrue(root.stats.slab.getAllocatedBytes() < allocated);
+  }
+
+  @Test
+  public void testEvictIdle_rollUp() {
+    NamespaceBuilder rolledUp = new NamespaceBuilder();
+    rolledUp.setRollUp(true);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) {
+      String metric = "app" + (i % 2) + ".job" + (i % 5) + ".metric";
+      testNamespaceBuilder.accept(metric, "host" + i, metric, now, i, i % 3 == 0, true);
+      rolledUp.accept(metric, "host" + i, metric, now, i, i % 3 == 0, true);
+    }
+    // evicted subtrees are folded into their parent.
+    assertEquals(2, rolledUp.evictIdleSince(Long.MAX_VALUE));
+    NamespaceNode expected = testNamespaceBuilder.getRoot();
+    NamespaceNode actual = rolledUp.getRoot();
+    assertTrue(actual.getNodes().isEmpty());
+    assertEquals(expected.getRate().getCount(), actual.getRate().getCount());
+    assertEquals(expected.getAccessed(), actual.getAccessed());
+    assertEquals(expected.getMin().get(), actual.getMin().get(), 0);
+    assertEquals(expected.getMax().get(), actual.getMax().get(), 0);
+    assertEquals(expected.getLag().getCount(), actual.getLag().getCount());
+
+    rolledUp.accept("app0.job0.metric", "host", "app0.job0.metric", now, 1000, false, true);
+    assertTrue(actual.getNodes().containsKey("app0."));
+  }
+
+  @Test
+  public void testAccountMemoryAndCoarsen() {
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      // "busy" sees as many points as "wide", over far fewer namespaces.
+      String metric = i % 2 == 0 ? "busy.metric" + (i % 4) : "wide.metric" + i;
+      testNamespaceBuilder.accept(metric, "host" + (i % 10), metric, now, i, false, true);
+    }
+    NamespaceNode root = testNamespaceBuilder.getRoot();
+    long total = testNamespaceBuilder.accountMemory();
+    NamespaceNode busy = root.getNodes().get("busy.");
+    NamespaceNode wide = root.getNodes().get("wide.");
+    assertEquals(total, root.getEstimatedBytes());
+    assertTrue(busy.getEstimatedBytes() > busy.estimatedBytes());
+    assertTrue(wide.getEstimatedBytes() > busy.getEstimatedBytes() * 10);
+    assertTrue(total > root.estimatedBytes() + busy.getEstimatedBytes() + wide.getEstimatedBytes() - 1);
+
+    // the namespace holding the most memory for its points goes first.
+    long freed = testNamespaceBuilder.coarsen(0.1);
+    assertTrue(freed >= total / 10);
+    assertTrue(wide.getNodes().isEmpty());
+    assertEquals(2, busy.getNodes().size());
+    assertEquals(500, wide.getRate().getCount());
+    assertTrue(testNamespaceBuilder.accountMemory() <= total - freed);
+  }
+
+  @Test
+  public void testSetExpansionPaused() {
+    testNamespaceBuilder.accept("app.metric1", "hostname", "app.metric1", 0, 0, false, true);
+    testNamespaceBuilder.setExpansionPaused(true);
+    testNamespaceBuilder.accept("app.metric1", "hostname", "app.metric1", 0, 0, false, true);
+    testNamespaceBuilder.accept("app.metric2", "hostname", "app.metric2", 0, 0, false, true);
+    testNamespaceBuilder.accept("other.metric", "hostname", "other.metric", 0, 0, false, true);
+    NamespaceNode root = testNamespaceBuilder.getRoot();
+    NamespaceNode app = root.getNodes().get("app.");
+    // points still count towards the namespaces that exist.
+    assertEquals(4, root.getRate().getCount());
+    assertEquals(3, app.getRate().getCount());
+    assertEquals(2, app.getNodes().get("metric1").getRate().getCount());
+    assertEquals(1, app.getNodes().size());
+    assertEquals(1, root.getNodes().size());
+    assertFalse(root.isLimited());
+
+    testNamespaceBuilder.setExpansionPaused(false);
+    testNamespaceBuilder.accept("app.metric2", "hostname", "app.metric2", 0, 0, false, true);
+    assertEquals(2, app.getNodes().size());
+  }
+
+  @Test
+  public void testSetOffHeap() {
+    NamespaceBuilder offHeap = new NamespaceBuilder();
+    offHeap.setOffHeap(true);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      String metric = "app" + (i % 3) + ".metric" + (i % 7);
+      testNamespaceBuilder.accept(metric, "host" + (i % 50), metric, now, i, i % 2 == 0, true);
+      offHeap.accept(metric, "host" + (i % 50), metric, now, i, i % 2 == 0, true);
+    }
+    assertTrue(offHeap.getRoot().stats.slab != null);
+    for (String app : new String[]{"app0.", "app1.", "app2."}) {
+      NamespaceNode expected = testNamespaceBuilder.getRoot().getNodes().get(app);
+      NamespaceNode actual = offHeap.getRoot().getNodes().get(app);
+      assertEquals(expected.getRate().getCount(), actual.getRate().getCount());
+      assertEquals(expected.getAccessed(), actual.getAccessed());
+      assertEquals(expected.getMin().get(), actual.getMin().get(), 0);
+      assertEquals(expected.getMax().get(), actual.getMax().get(), 0);
+      assertEquals(expected.getEstimatedHostCardinality(), actual.getEstimatedHostCardinality());
+      assertEquals(expected.getEstimatedMetricCardinality(),
+          actual.getEstimatedMetricCardinality());
+    }
+  }
+
+  /**
+   * Many threads hammering the same tree must not lose counts or create duplicate children.
+   */
+  @Test
+  public void testAccept_concurrentNoLostCounts() throws Exception {
+    int threads = 8, pointsPerThread = 20_000, series = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < pointsPerThread; i++) {
+          String metric = "stress.series" + (i % series) + ".value";
+          testNamespaceBuilder.accept(metric, "host" + (i % 7), metric, System.currentTimeMillis(),
+              i, i % 2 == 0, true);
+        }
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    long total = (long) threads * pointsPerThread;
+    NamespaceNode root = testNamespaceBuilder.getRoot();
+    assertEquals(total, root.getRate().getCount());
+    assertEquals(total / 2, root.getAccessed());
+    assertEquals(0, root.getMin().get(), 0);
+    assertEquals(pointsPerThread - 1, root.getMax().get(), 0);
+
+    NamespaceNode stress = root.getNodes().get("stress.");
+    assertEquals(total, stress.getRate().getCount());
+    assertEquals(series, stress.getNodes().size());
+    long sum = 0;
+    for (NamespaceNode child : stress.getNodes().values()) {
+      assertEquals(total / series, child.getRate().getCount());
+      assertEquals(total / series, child.getNodes().get("value").getRate().getCount());
+      sum += child.getRate().getCount();
+    }
+    assertEquals(total, sum);
+    assertEquals(series, stress.getEstimatedMetricCardinality());
+    assertEquals(7, stress.getEstimatedHostCardinality());
+  }
+
+  /**
+   * Rolled up statistics of a namespace must match those of a tree updated at every level.
+   */
+  @Test
+  public void testAccept_rollUp() throws InterruptedException {
+    NamespaceBuilder rolledUp = new NamespaceBuilder();
+    rolledUp.setRollUp(true);
+    for (int round = 0; round < 2; round++) {
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < 1000; i++) {
+        String metric = "app" + (i % 3) + ".service" + (i % 11) + ".metric" + (i % 29);
+        long timestamp = System.currentTimeMillis() - i;
+        testNamespaceBuilder.accept(metric, "host" + (i % 13), metric, timestamp, i, i % 4 == 0, true);
+        rolledUp.accept(metric, "host" + (i % 13), metric, timestamp, i, i % 4 == 0, true);
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      assertSameStats(testNamespaceBuilder.getRoot(), rolledUp.getRoot(), elapsed);
+      // new points must show up once the roll-up is refreshed.
+      Thread.sleep(600);
+    }
+  }
+
+  /**
+   * @param lagSkewMillis Most a point's lag can differ by between the trees, i.e. how long it took
+   *                      to feed them.
+   */
+  private static void assertSameStats(NamespaceNode expected, NamespaceNode actual,
+                                      long lagSkewMillis) {
+    assertEquals(expected.getRate().getCount(), actual.getRate().getCount());
+    assertEquals(expected.getAccessed(), actual.getAccessed());
+    assertEquals(expected.getMin().get(), actual.getMin().get(), 0);
+    assertEquals(expected.getMax().get(), actual.getMax().get(), 0);
+    RecentStats expectedRecent = expected.getRecentStats(15);
+    RecentStats actualRecent = actual.getRecentStats(15);
+    assertEquals(expectedRecent.getCount(), actualRecent.getCount());
+    assertEquals(expectedRecent.getAccessed(), actualRecent.getAccessed());
+    assertEquals(expectedRecent.getRange(), actualRecent.getRange(), 0);
+    // lag sketches merge exactly, lags themselves differ by when each builder saw the point (up to
+    // a GC pause in the middle of feeding them).
+    assertEquals(expected.getLag().getCount(), actual.getLag().getCount());
+    double median = expected.getLag().getSnapshot().getMedian();
+    assertEquals(median, actual.getLag().getSnapshot().getMedian(),
+        0.07 * (median + lagSkewMillis) + lagSkewMillis + 10);
+    if (expected.getNodes().isEmpty()) return;
+    // the last node of a namespace does not track cardinality unless rolling up.
+    assertEquals(expected.getEstimatedHostCardinality(), actual.getEstimatedHostCardinality());
+    assertEquals(expected.getEstimatedMetricCardinality(), actual.getEstimatedMetricCardinality());
+    assertEquals(expected.getNodes().keySet(), actual.getNodes().keySet());
+    for (Map.Entry<String, NamespaceNode> entry : expected.getNodes().entrySet()) {
+      assertSameStats(entry.getValue(), actual.getNodes().get(entry.getKey()), lagSkewMillis);
+    }
+  }
 }
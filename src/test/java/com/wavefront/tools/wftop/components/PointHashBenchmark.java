@@ -0,0 +1,62 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableMultimap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-point cost of updating a namespace tree with points that go 10 levels deep, i.e. where every
+ * statistic is updated 10 times per point (or just once when rolling up).
+ * <p>
+ * Run with {@code java -cp <test classpath> org.openjdk.jmh.Main PointHashBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PointHashBenchmark {
+
+  private static final int METRICS = 1024;
+  private static final int HOSTS = 64;
+
+  private final RootNode root = new RootNode("root");
+  private final String[] metrics = new String[METRICS];
+  private final String[] hosts = new String[HOSTS];
+  private int i = 0;
+
+  @Param({"false", "true"})
+  public boolean rollUp;
+
+  @Setup
+  public void setUp() {
+    root.setRollUp(rollUp);
+    for (int m = 0; m < METRICS; m++) {
+      metrics[m] = "com.wavefront.service" + (m % 8) + ".component" + (m % 32) +
+          ".requests.latency.p" + (m % 4) + ".region.zone.rack.metric" + m;
+    }
+    for (int h = 0; h < HOSTS; h++) {
+      hosts[h] = "app-" + h + ".prod.example.com";
+    }
+  }
+
+  @Benchmark
+  public void acceptPoint() {
+    int n = i++;
+    root.accept(Dimension.METRIC, false, (n & 1) == 0, metrics[n & (METRICS - 1)],
+        hosts[n & (HOSTS - 1)], ImmutableMultimap.of(), System.currentTimeMillis(), n);
+  }
+}
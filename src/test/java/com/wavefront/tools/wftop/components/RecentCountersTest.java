@@ -0,0 +1,77 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test for {@link RecentCounters} and {@link SlidingSketch}
+ */
+public class RecentCountersTest {
+
+  @Test
+  public void testWindows() {
+    AtomicLong now = new AtomicLong(RecentCounters.INTERVAL_MILLIS * 1000);
+    RecentCounters counters = new RecentCounters(now::get);
+    counters.add(10, 5, -3, 4);
+    now.addAndGet(RecentCounters.INTERVAL_MILLIS * 3);
+    counters.add(20, 0, 1, 100);
+
+    RecentStats oneMinute = counters.get(1);
+    assertEquals(20, oneMinute.getCount());
+    assertEquals(0, oneMinute.getAccessedRatio(), 0);
+    assertEquals(99, oneMinute.getRange(), 0);
+    RecentStats fiveMinutes = counters.get(5);
+    assertEquals(30, fiveMinutes.getCount());
+    assertEquals(5, fiveMinutes.getAccessed());
+    assertEquals(103, fiveMinutes.getRange(), 0);
+
+    // the first interval falls out of the 5 minute window, then out of all of them.
+    now.addAndGet(RecentCounters.INTERVAL_MILLIS * 2);
+    assertEquals(20, counters.get(5).getCount());
+    assertEquals(30, counters.get(15).getCount());
+    now.addAndGet(RecentCounters.INTERVAL_MILLIS * 15);
+    assertSame(RecentStats.EMPTY, counters.get(15));
+
+    // slots are recycled once expired.
+    counters.add(1, 1, Double.MAX_VALUE, -Double.MAX_VALUE);
+    assertEquals(1, counters.get(15).getCount());
+    assertEquals(1, counters.get(15).getAccessedRatio(), 0);
+    assertEquals(0, counters.get(15).getRange(), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownWindow() {
+    RecentStats.index(10);
+  }
+
+  @Test
+  public void testSlidingSketch() {
+    AtomicLong now = new AtomicLong(SlidingSketch.GENERATION_MILLIS * 100);
+    SlidingSketch sketch = new SlidingSketch(null, 13, 5, now::get);
+    for (int i = 0; i < 100; i++) {
+      sketch.addRaw(MurmurHash3.fmix64(i));
+    }
+    assertEquals(100, sketch.cardinality());
+
+    // estimates cover the previous generation too.
+    now.addAndGet(SlidingSketch.GENERATION_MILLIS);
+    for (int i = 50; i < 150; i++) {
+      sketch.addRaw(MurmurHash3.fmix64(i));
+    }
+    assertEquals(150, sketch.toHLL().cardinality());
+
+    // the oldest generation is dropped, its sketch reused for the next one.
+    now.addAndGet(SlidingSketch.GENERATION_MILLIS);
+    assertEquals(100, sketch.cardinality());
+    sketch.addRaw(MurmurHash3.fmix64(1_000));
+    assertEquals(101, sketch.toHLL().cardinality());
+
+    // long idle, nothing left.
+    now.addAndGet(SlidingSketch.GENERATION_MILLIS * 2);
+    assertEquals(0, sketch.cardinality());
+  }
+}
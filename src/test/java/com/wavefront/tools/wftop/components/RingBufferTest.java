@@ -0,0 +1,62 @@
+package com.wavefront.tools.wftop.components;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link RingBuffer}
+ */
+public class RingBufferTest {
+
+  @Test
+  public void testFifoAndDrops() throws InterruptedException {
+    RingBuffer<AtomicLong> ring = new RingBuffer<>(3, AtomicLong::new);
+    for (long i = 0; i < 3; i++) {
+      assertTrue(ring.offer(AtomicLong::set, i));
+    }
+    assertFalse(ring.offer(AtomicLong::set, 3L));
+    assertEquals(3, ring.size());
+    assertEquals(1, ring.getDropped());
+
+    AtomicLong spare = new AtomicLong(-1);
+    for (long i = 0; i < 3; i++) {
+      AtomicLong filled = ring.poll(spare, 0, TimeUnit.MILLISECONDS);
+      assertNotNull(filled);
+      assertEquals(i, filled.get());
+      spare = filled;
+    }
+    assertNull(ring.poll(spare, 10, TimeUnit.MILLISECONDS));
+    assertEquals(0, ring.size());
+  }
+
+  @Test
+  public void testSlotsAreRecycled() throws InterruptedException {
+    RingBuffer<AtomicLong> ring = new RingBuffer<>(2, AtomicLong::new);
+    AtomicLong spare = new AtomicLong();
+    ring.offer(AtomicLong::set, 1L);
+    AtomicLong filled = ring.poll(spare, 0, TimeUnit.MILLISECONDS);
+    // the spare now lives in the ring and is handed back out once written to.
+    ring.offer(AtomicLong::set, 2L);
+    ring.offer(AtomicLong::set, 3L);
+    assertEquals(2, ring.poll(filled, 0, TimeUnit.MILLISECONDS).get());
+    assertTrue(spare == ring.poll(new AtomicLong(), 0, TimeUnit.MILLISECONDS));
+    assertEquals(3, spare.get());
+  }
+
+  @Test
+  public void testClear() throws InterruptedException {
+    RingBuffer<AtomicLong> ring = new RingBuffer<>(2, AtomicLong::new);
+    ring.offer(AtomicLong::set, 1L);
+    ring.clear();
+    assertEquals(0, ring.size());
+    assertNull(ring.poll(new AtomicLong(), 0, TimeUnit.MILLISECONDS));
+  }
+}
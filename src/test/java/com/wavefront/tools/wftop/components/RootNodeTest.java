@@ -83,4 +83,126 @@ public class RootNodeTest {
     assertTrue(root.getNodes().containsKey("proxy::user-a01.test.com"));
     assertTrue(root.getNodes().containsKey("token::abcde-12345"));
   }
-}
\ No newline at end of file
+
+  /**
+   * Tests statistics across all sources are merged from the sources' trees.
+   */
+  @Test
+  public void globalStats() {
+    this.groupByIngestionSource = true;
+    addPointsNoSource();
+    addPointsWithSource();
+    // "host2" and "metric" were already seen under other sources.
+    root.accept(analysisDimension, groupByIngestionSource, true, "metric", "host2",
+        ImmutableMultimap.of("_wavefront_source", "proxy::user-a01.test.com"), 0, 7);
+    assertEquals(6, root.getRate().getCount());
+    assertEquals(1, root.getAccessed());
+    assertEquals(5, root.getEstimatedHostCardinality());
+    assertEquals(5, root.getEstimatedMetricCardinality());
+    assertEquals(7, root.getRange(), 0);
+    assertEquals(6, root.getLag().getCount());
+    assertEquals(6, root.getRecentStats(1).getCount());
+    assertEquals(1, root.getRecentStats(5).getAccessed());
+  }
+
+  /**
+   * Tests sharded trees look like a single tree through the Node interface.
+   */
+  @Test
+  public void sharded() throws InterruptedException {
+    root.setShards(4);
+    try {
+      Multimap<String, String> noSource = ImmutableMultimap.of();
+      for (int i = 0; i < 100; i++) {
+        root.accept(analysisDimension, groupByIngestionSource, i % 4 == 0, "ns" + (i % 10) + ".metric" + i,
+            "host" + (i % 5), noSource, System.currentTimeMillis(), i);
+      }
+      root.flush();
+      SourceNode sourceNode = root.getDefaultRoot();
+      assertEquals(10, sourceNode.getNodes().size());
+      for (int i = 0; i < 10; i++) {
+        NamespaceNode namespace = sourceNode.getNodes().get("ns" + i + ".");
+        assertEquals(10, namespace.getNodes().size());
+        assertEquals(10, namespace.getRate().getCount());
+      }
+      assertEquals(100, sourceNode.getRate().getCount());
+      assertEquals(100, root.getRate().getCount());
+      assertEquals(25, sourceNode.getAccessed());
+      assertEquals(100, sourceNode.getEstimatedMetricCardinality());
+      assertEquals(5, sourceNode.getEstimatedHostCardinality());
+      assertEquals(99, sourceNode.getRange(), 0);
+      assertEquals(100, sourceNode.getLag().getCount());
+    } finally {
+      root.setShards(1);
+    }
+  }
+
+  /**
+   * Tests coalesced points end up with the same statistics as points applied one by one.
+   */
+  @Test
+  public void coalesced() throws InterruptedException {
+    RootNode direct = new RootNode("direct");
+    // long enough that only flush() applies the points.
+    root.setCoalesceWindow(60_000);
+    try {
+      Multimap<String, String> noSource = ImmutableMultimap.of();
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 100; i++) {
+        for (RootNode node : new RootNode[]{root, direct}) {
+          node.accept(analysisDimension, groupByIngestionSource, i % 4 == 0, "ns" + (i % 3) + ".metric" + (i % 10),
+              "host" + (i % 5), noSource, now, i);
+        }
+      }
+      assertEquals(0, root.getRate().getCount());
+      root.flush();
+      NamespaceNode namespace = root.getDefaultRoot().getNodes().get("ns1.");
+      NamespaceNode expected = direct.getDefaultRoot().getNodes().get("ns1.");
+      assertEquals(expected.getNodes().keySet(), namespace.getNodes().keySet());
+      assertEquals(33, namespace.getRate().getCount());
+      assertSameStats(expected, namespace);
+      assertSameStats(direct, root);
+    } finally {
+      root.setCoalesceWindow(0);
+    }
+  }
+
+  /**
+   * Tests memory is accounted across sources and a budget that is exceeded stops trees growing.
+   */
+  @Test
+  public void memoryBudget() {
+    this.groupByIngestionSource = true;
+    addPointsNoSource();
+    addPointsWithSource();
+    long total = root.accountMemory();
+    long sources = 0;
+    for (SourceNode source : root.getNodes().values()) {
+      sources += source.getEstimatedBytes();
+    }
+    assertEquals(total, sources);
+    assertEquals(total, root.getEstimatedBytes());
+
+    root.setMemoryBudget(0.5);
+    try {
+      assertEquals(0.5, root.getMemoryBudget(), 0);
+      root.setExpansionPaused(true);
+      root.accept(analysisDimension, groupByIngestionSource, false, "brand.new", "host",
+          ImmutableMultimap.of(), 0, 0);
+      assertFalse(root.getDefaultRoot().getNodes().containsKey("brand."));
+    } finally {
+      root.setMemoryBudget(0);
+    }
+    assertFalse(root.isExpansionPaused());
+  }
+
+  private static void assertSameStats(Node<?> expected, Node<?> actual) {
+    assertEquals(expected.getRate().getCount(), actual.getRate().getCount());
+    assertEquals(expected.getAccessed(), actual.getAccessed());
+    assertEquals(expected.getEstimatedHostCardinality(), actual.getEstimatedHostCardinality());
+    assertEquals(expected.getEstimatedMetricCardinality(), actual.getEstimatedMetricCardinality());
+    assertEquals(expected.getMin().get(), actual.getMin().get(), 0);
+    assertEquals(expected.getMax().get(), actual.getMax().get(), 0);
+    assertEquals(expected.getLag().getCount(), actual.getLag().getCount());
+  }
+}
@@ -0,0 +1,110 @@
+package com.wavefront.tools.wftop.components;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import com.wavefront.ingester.SpyApiMetricDecoder;
+
+import org.junit.Test;
+
+import wavefront.report.Annotation;
+import wavefront.report.ReportMetric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link SpyLineParser}
+ */
+public class SpyLineParserTest {
+  private final SpyLineParser parser = new SpyLineParser();
+
+  @Test
+  public void testSameAsSpyApiDecoder() {
+    String[] lines = {
+        "metric.name source=host 1600000000 1.5",
+        "\"quoted metric\" source=\"a host\" 1600000000123 -2 key=value",
+        "m host=h 1600000000.25 3 source = s \"k k\"=\"v \\\" v\"",
+        "m source=h 1600000000123456 1e3 k=v k=w",
+        "m source=h 1600000000123456789 NaN",
+        "m fqdn=f 1600000000 0.000123456789 host=h",
+        "m source=h 1600000000 12345678901234567890 source=again",
+    };
+    SpyApiMetricDecoder decoder = new SpyApiMetricDecoder();
+    for (String line : lines) {
+      List<ReportMetric> out = new ArrayList<>();
+      decoder.decode(line, out, null, null);
+      ReportMetric expected = out.get(0);
+      parse(line);
+      assertEquals(line, expected.getMetric(), parser.getMetric());
+      assertEquals(line, expected.getHost(), parser.getHost());
+      assertEquals(line, (long) expected.getTimestamp(), parser.getTimestamp());
+      assertEquals(line, (Double) expected.getValue(), parser.getValue(), 0);
+      Multimap<String, String> tags = ArrayListMultimap.create();
+      if (expected.getAnnotations() != null) {
+        for (Annotation annotation : expected.getAnnotations()) {
+          tags.put(annotation.getKey(), annotation.getValue());
+        }
+      }
+      assertEquals(line, tags, parser.getPointTags(null));
+    }
+  }
+
+  @Test
+  public void testSelectedPointTags() {
+    parse("m source=h 1600000000 1 a=1 _wavefront_source=proxy b=2");
+    assertEquals(Collections.singletonList("proxy"),
+        parser.getPointTags(Collections.singleton("_wavefront_source")).get("_wavefront_source"));
+    assertTrue(parser.getPointTags(Collections.emptySet()).isEmpty());
+  }
+
+  @Test
+  public void testView() {
+    parse("\"a.\\\"b\" host=h 1600000000 1 source=s k=v k=w");
+    assertEquals("a.\"b", parser.getMetric());
+    assertEquals(NamespaceBuilder.hash("a.\"b"), parser.getMetricHash());
+    assertEquals(NamespaceBuilder.hash("s"), parser.getHostHash());
+    assertEquals(3, parser.getPointTagCount());
+    assertEquals("_host", parser.getPointTagKey(0));
+    assertEquals("h", parser.getPointTag("_host"));
+    assertEquals("v", parser.getPointTag("k"));
+    assertNull(parser.getPointTag("source"));
+    // repeated names are shared across points.
+    String host = parser.getHost();
+    parse("m source=s 1600000000 1");
+    assertSame(host, parser.getHost());
+    assertEquals(NamespaceBuilder.hash(SpyLineParser.DEFAULT_HOST),
+        parse("m fqdn=f 1600000000 1").getHostHash());
+  }
+
+  @Test
+  public void testOffsets() {
+    byte[] buf = "[ACCESSED]   m source=h 1600000000 1  ".getBytes(StandardCharsets.UTF_8);
+    parser.parse(buf, 13, buf.length, true);
+    assertTrue(parser.isAccessed());
+    assertEquals("m", parser.getMetric());
+    assertEquals("h", parser.getHost());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingAnnotation() {
+    parse("m 1600000000 1");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidValue() {
+    parse("m source=h 1600000000 0x10");
+  }
+
+  private SpyPoint parse(String line) {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    parser.parse(bytes, 0, bytes.length, false);
+    return parser;
+  }
+}
@@ -0,0 +1,175 @@
+package com.wavefront.tools.wftop.panels;
+
+import com.google.common.collect.ImmutableList;
+import com.googlecode.lanterna.gui2.table.TableModel;
+import com.googlecode.lanterna.input.KeyStroke;
+import com.googlecode.lanterna.input.KeyType;
+import com.wavefront.tools.wftop.components.Node;
+import com.wavefront.tools.wftop.components.RootNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test for {@link NamespacePanel}
+ */
+public class NamespacePanelTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRenderNodes_updatesChangedRows() {
+    RootNode root = new RootNode("root");
+    for (int i = 0; i < 5; i++) {
+      root.accept("key" + i + "=value");
+    }
+    Node<?> source = root.getNodes().get("None");
+    List<Node> nodes = new ArrayList<>(source.getNodes().values());
+    NamespacePanel panel = new IdNamespacePanel(null, null);
+    panel.setSortIndex(0);
+    panel.toggleSortOrder();
+    panel.renderNodes(source, 1, nodes, false);
+    assertEquals(ImmutableList.of("..", "key0=value", "key1=value", "key2=value", "key3=value", "key4=value"), labels(panel));
+
+    AtomicInteger changes = new AtomicInteger();
+    panel.table.getTableModel().addListener(new TableModel.Listener<String>() {
+      @Override
+      public void onRowAdded(TableModel<String> tableModel, int index) {
+        changes.incrementAndGet();
+      }
+
+      @Override
+      public void onRowRemoved(TableModel<String> tableModel, int index, List<String> oldRow) {
+        changes.incrementAndGet();
+      }
+
+      @Override
+      public void onColumnAdded(TableModel<String> tableModel, int index) {
+        changes.incrementAndGet();
+      }
+
+      @Override
+      public void onColumnRemoved(TableModel<String> tableModel, int index, String oldHeader,
+                                  List<String> oldColumn) {
+        changes.incrementAndGet();
+      }
+
+      @Override
+      public void onCellChanged(TableModel<String> tableModel, int column, int row, String oldValue,
+                                String newValue) {
+        changes.incrementAndGet();
+      }
+    });
+    // nothing changed, nothing touched.
+    panel.renderNodes(source, 1, nodes, false);
+    assertEquals(0, changes.get());
+
+    // two rows go away from the end, the others keep their place.
+    nodes.removeIf(node -> node.getFlattened().compareTo("key3") > 0);
+    panel.renderNodes(source, 1, nodes, false);
+    assertEquals(ImmutableList.of("..", "key0=value", "key1=value", "key2=value"), labels(panel));
+    assertEquals(2, changes.get());
+
+    // reversing only rewrites the rows that moved.
+    panel.toggleSortOrder();
+    changes.set(0);
+    panel.renderNodes(source, 1, nodes, false);
+    assertEquals(ImmutableList.of("..", "key2=value", "key1=value", "key0=value"), labels(panel));
+    assertEquals(2, changes.get());
+  }
+
+  @Test
+  public void testRenderNodes_exportKeepsTableBounded() throws IOException {
+    RootNode root = new RootNode("root");
+    for (int i = 0; i < 100; i++) {
+      root.accept("key" + i + "=value");
+    }
+    Node<?> source = root.getNodes().get("None");
+    NamespacePanel panel = new IdNamespacePanel(null, null);
+    panel.setVisibleRows(10);
+    File file = folder.newFile();
+    panel.setExportData(true, file.getPath());
+    panel.renderNodes(source, 1, new ArrayList<>(source.getNodes().values()), true);
+    // the table only holds the rows shown and those just past them.
+    assertEquals(1 + 10 + 50, panel.table.getTableModel().getRowCount());
+    // the export has them all, after the header and the folder.
+    assertEquals(2 + 100, Files.readAllLines(file.toPath()).size());
+  }
+
+  @Test
+  public void testScrollingReadsMoreRowsOnNextRender() {
+    RootNode root = new RootNode("root");
+    for (int i = 0; i < 100; i++) {
+      root.accept("key" + i + "=value");
+    }
+    Node<?> source = root.getNodes().get("None");
+    List<Node> nodes = new ArrayList<>(source.getNodes().values());
+    NamespacePanel panel = new IdNamespacePanel(null, null);
+    AtomicInteger requests = new AtomicInteger();
+    panel.setListener(new NamespacePanel.Listener() {
+      @Override
+      public void onExit() {
+      }
+
+      @Override
+      public void onStopStart() {
+      }
+
+      @Override
+      public void sortLeft() {
+      }
+
+      @Override
+      public void sortRight() {
+      }
+
+      @Override
+      public void reverseSort() {
+      }
+
+      @Override
+      public void onMoreRows() {
+        requests.incrementAndGet();
+      }
+
+      @Override
+      public void selectElement(Node<?> element) {
+      }
+
+      @Override
+      public void goUp() {
+      }
+    });
+    panel.setVisibleRows(10);
+    panel.renderNodes(source, 1, nodes, false);
+    assertEquals(1 + 10 + 50, panel.table.getTableModel().getRowCount());
+
+    // nearing the last row asks for a refresh rather than reading the nodes on the GUI thread.
+    panel.table.setSelectedRow(40);
+    panel.table.handleKeyStroke(new KeyStroke(KeyType.ArrowDown));
+    panel.table.handleKeyStroke(new KeyStroke(KeyType.ArrowDown));
+    assertEquals(1, requests.get());
+    assertEquals(1 + 10 + 50, panel.table.getTableModel().getRowCount());
+    panel.renderNodes(source, 1, nodes, false);
+    assertEquals(1 + 100, panel.table.getTableModel().getRowCount());
+  }
+
+  private static List<String> labels(NamespacePanel panel) {
+    List<String> labels = new ArrayList<>();
+    for (List<String> row : panel.table.getTableModel().getRows()) {
+      labels.add(row.get(0));
+    }
+    return labels;
+  }
+}
@@ -0,0 +1,88 @@
+package com.wavefront.tools.wftop.panels;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.wavefront.tools.wftop.components.Node;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test for {@link NamespaceRows}
+ */
+public class NamespaceRowsTest {
+
+  @Test
+  public void testTop() {
+    for (int sortIndex = 0; sortIndex <= 2; sortIndex++) {
+      for (boolean reverse : new boolean[]{false, true}) {
+        assertTop(1_000, 0, sortIndex, reverse);
+        assertTop(1_000, 10, sortIndex, reverse);
+        assertTop(1_000, 2_000, sortIndex, reverse);
+      }
+    }
+  }
+
+  @Test
+  public void testTop_parallel() {
+    assertTop(NamespaceRows.PARALLEL_THRESHOLD * 2, 100, 1, true);
+    assertTop(NamespaceRows.PARALLEL_THRESHOLD * 2, 100, 2, false);
+  }
+
+  @Test
+  public void testTop_readsSelectedRowsOnce() {
+    AtomicInteger reads = new AtomicInteger();
+    NamespaceRows rows = rows(1_000, 1, new double[1_000], reads);
+    assertEquals(10, rows.top(10, false).size());
+    assertEquals(10, reads.get());
+    // the same rows plus the next ten.
+    assertEquals(20, rows.top(20, false).size());
+    assertEquals(20, reads.get());
+    // ties keep the order the nodes were given in.
+    List<NamespaceRows.Row> top = rows.top(3, true);
+    for (int i = 0; i < top.size(); i++) {
+      assertEquals("node" + i, top.get(i).getLabel());
+    }
+  }
+
+  private static NamespaceRows rows(int count, int sortIndex, double[] keys, AtomicInteger reads) {
+    String[] names = new String[count];
+    for (int i = 0; i < count; i++) {
+      names[i] = "node" + i;
+    }
+    NamespaceRows.Row first = new NamespaceRows.Row(null, new String[]{".."});
+    return new NamespaceRows(first, new Node[count], names, sortIndex, keys, (node, name) -> {
+      reads.incrementAndGet();
+      return new NamespaceRows.Row(node, new String[]{name});
+    });
+  }
+
+  /**
+   * Compare with a stable sort of all the children.
+   */
+  private static void assertTop(int count, int limit, int sortIndex, boolean reverse) {
+    Random random = new Random(count);
+    double[] keys = new double[count];
+    for (int i = 0; i < count; i++) {
+      // few distinct values in the second column so there are many ties.
+      keys[i] = sortIndex == 2 ? random.nextInt(10) : random.nextDouble();
+    }
+    List<Integer> expected = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      expected.add(i);
+    }
+    Comparator<Integer> comparator = sortIndex == 0 ?
+        Comparator.comparing(i -> "node" + i) : Comparator.comparingDouble(i -> keys[i]);
+    expected.sort(reverse ? comparator.reversed() : comparator);
+    List<NamespaceRows.Row> top = rows(count, sortIndex, keys, new AtomicInteger()).top(limit, reverse);
+    assertEquals(Math.min(limit, count), top.size());
+    for (int i = 0; i < top.size(); i++) {
+      assertEquals("node" + expected.get(i), top.get(i).getLabel());
+    }
+  }
+}
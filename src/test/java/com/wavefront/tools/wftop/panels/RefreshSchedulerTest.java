@@ -0,0 +1,81 @@
+package com.wavefront.tools.wftop.panels;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.lanterna.gui2.BasicWindow;
+import com.googlecode.lanterna.gui2.MultiWindowTextGUI;
+import com.googlecode.lanterna.screen.TerminalScreen;
+import com.googlecode.lanterna.terminal.virtual.DefaultVirtualTerminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test for {@link RefreshScheduler}
+ */
+public class RefreshSchedulerTest {
+
+  @Test
+  public void testNextInterval() {
+    // cheap frames, halfway down to the minimum.
+    assertEquals(3_000, RefreshScheduler.nextInterval(5_000, TimeUnit.MILLISECONDS.toNanos(100)));
+    assertEquals(RefreshScheduler.MIN_INTERVAL_MILLIS,
+        RefreshScheduler.nextInterval(600, TimeUnit.MILLISECONDS.toNanos(1)));
+    // costly frames, up at once.
+    assertEquals(2_000, RefreshScheduler.nextInterval(1_000, TimeUnit.MILLISECONDS.toNanos(200)));
+    assertEquals(RefreshScheduler.MAX_INTERVAL_MILLIS,
+        RefreshScheduler.nextInterval(1_000, TimeUnit.SECONDS.toNanos(2)));
+  }
+
+  @Test
+  public void testAfterScreenUpdate() throws Exception {
+    TerminalScreen screen = new TerminalScreen(new DefaultVirtualTerminal());
+    screen.startScreen();
+    MultiWindowTextGUI gui = new MultiWindowTextGUI(screen);
+    gui.addWindow(new BasicWindow("wftop"));
+    assertTrue(gui.isPendingUpdate());
+    AtomicBoolean pendingWhenPresented = new AtomicBoolean(true);
+    RefreshScheduler.afterScreenUpdate(gui).accept(() -> pendingWhenPresented.set(gui.isPendingUpdate()));
+    // queued tasks run before the GUI thread updates the screen itself.
+    gui.getGUIThread().processEventsAndUpdate();
+    assertFalse(pendingWhenPresented.get());
+    screen.stopScreen();
+  }
+
+  @Test
+  public void testSkipsFramesUntilPresented() throws Exception {
+    AtomicInteger refreshes = new AtomicInteger();
+    LinkedBlockingQueue<Runnable> pending = new LinkedBlockingQueue<>();
+    RefreshScheduler scheduler = new RefreshScheduler(refreshes::incrementAndGet, pending::add);
+    try {
+      Runnable presented = pending.poll(5, TimeUnit.SECONDS);
+      assertNotNull(presented);
+      assertEquals(1, refreshes.get());
+      // the GUI thread has not drawn the first frame, the next one is skipped.
+      long deadline = System.currentTimeMillis() + 5_000;
+      while (scheduler.getSkippedFrames() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(scheduler.getSkippedFrames() > 0);
+      assertEquals(1, refreshes.get());
+      // a refresh requested meanwhile follows as soon as the frame is drawn.
+      scheduler.requestRefresh();
+      Thread.sleep(50);
+      assertEquals(1, refreshes.get());
+      presented.run();
+      assertNotNull(pending.poll(5, TimeUnit.SECONDS));
+      assertEquals(2, refreshes.get());
+      // drawing the first frame took over a second, frames are now as far apart as they get.
+      assertEquals(RefreshScheduler.MAX_INTERVAL_MILLIS, scheduler.getIntervalMillis());
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+}